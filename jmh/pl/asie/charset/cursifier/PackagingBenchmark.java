@@ -0,0 +1,111 @@
+package pl.asie.charset.cursifier;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The analyze and package stages end to end, on a synthetic jar. The PNG
+ * cache is warmed up during setup, so PNG optimization is not measured.
+ * analyze starts without a class analysis cache every time; analyzeCached
+ * uses one from an earlier run, in a separate defs directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class PackagingBenchmark {
+	@Param("20")
+	public int modules;
+	@Param("50")
+	public int classesPerModule;
+	@Param("1")
+	public int innerClasses;
+	@Param("4")
+	public int pngs;
+
+	private File directory, jarFile, outPath, defPath, cachedDefPath;
+	private ModuleUploader analyzed;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("cursifier-jmh").toFile();
+		jarFile = new File(directory, "Charset-0.0.0.jar");
+		outPath = new File(directory, "result");
+		defPath = new File(directory, "defs");
+		cachedDefPath = new File(directory, "defs-cached");
+		outPath.mkdirs();
+
+		SyntheticJar generator = new SyntheticJar();
+		generator.modules = modules;
+		generator.classesPerModule = classesPerModule;
+		generator.innerClasses = innerClasses;
+		generator.pngs = pngs;
+		generator.write(jarFile);
+		generator.writeSettings(defPath);
+		generator.writeSettings(cachedDefPath);
+
+		analyzed = new ModuleUploader(jarFile, outPath, defPath);
+		analyzed.analyze();
+		try (ModuleUploader uploader = new ModuleUploader(jarFile, outPath, cachedDefPath)) {
+			uploader.analyze();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void forgetPackages() {
+		new File(defPath, "packages.json").delete();
+		new File(defPath, "classcache.bin").delete();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		analyzed.close();
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public void analyze() throws IOException {
+		try (ModuleUploader uploader = new ModuleUploader(jarFile, outPath, defPath)) {
+			uploader.analyze();
+		}
+	}
+
+	@Benchmark
+	public void analyzeCached() throws IOException {
+		try (ModuleUploader uploader = new ModuleUploader(jarFile, outPath, cachedDefPath)) {
+			uploader.analyze();
+		}
+	}
+
+	@Benchmark
+	public void packageModules() throws IOException {
+		analyzed.packageModules();
+	}
+
+	/**
+	 * Copies every entry of the jar into a single one, untouched.
+	 */
+	@Benchmark
+	public void rawCopy() throws IOException {
+		try (JarPackager packager = new JarPackager(jarFile, null, new PackageManifestJSON(), new Metrics(), 1)) {
+			packager.addTarget(new File(outPath, "copy.jar"), (name) -> true, null);
+			packager.run(new HashSet<>(), null);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package pl.asie.charset.cursifier;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-entry work done while analysing and uploading, measured over every
+ * entry of a synthetic jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+	@Param("20")
+	public int modules;
+	@Param("50")
+	public int classesPerModule;
+	@Param("1")
+	public int innerClasses;
+
+	private File directory, jarFile;
+	private List<String> names;
+	private List<byte[]> classes;
+	private ModulePathIndex modulePathIndex;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("cursifier-jmh").toFile();
+		jarFile = new File(directory, "Charset-0.0.0.jar");
+
+		SyntheticJar generator = new SyntheticJar();
+		generator.modules = modules;
+		generator.classesPerModule = classesPerModule;
+		generator.innerClasses = innerClasses;
+		generator.pngs = 0;
+		generator.write(jarFile);
+		modulePathIndex = new ModulePathIndex(generator.getModulesByPath());
+
+		names = new ArrayList<>();
+		classes = new ArrayList<>();
+		try (SourceJar source = new SourceJar(jarFile)) {
+			for (SourceJar.Entry entry : source.getEntries()) {
+				names.add(entry.getName());
+				if (entry.getName().endsWith(".class")) {
+					classes.add(source.read(entry));
+				}
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		jarFile.delete();
+		directory.delete();
+	}
+
+	@Benchmark
+	public void stripInnerClass(Blackhole blackhole) {
+		for (String name : names) {
+			blackhole.consume(Utils.stripInnerClass(name));
+		}
+	}
+
+	@Benchmark
+	public void modulePathLookup(Blackhole blackhole) {
+		for (String name : names) {
+			blackhole.consume(modulePathIndex.get(name));
+		}
+	}
+
+	@Benchmark
+	public void referenceScanConstantPool(Blackhole blackhole) {
+		for (byte[] data : classes) {
+			blackhole.consume(ClassReferenceExtractor.getReferencedClasses(data));
+		}
+	}
+
+	@Benchmark
+	public void referenceScanAsm(Blackhole blackhole) {
+		for (byte[] data : classes) {
+			ModuleUploader.ListingRemapper remapper = new ModuleUploader.ListingRemapper();
+			new ClassReader(data).accept(new ClassRemapper(new ClassWriter(0), remapper), 0);
+			blackhole.consume(remapper);
+		}
+	}
+
+	@Benchmark
+	public boolean fingerprint() throws IOException {
+		return new StateJSON().add(JarFingerprint.compute(jarFile), jarFile.getName(), true);
+	}
+}
@@ -0,0 +1,177 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import org.objectweb.asm.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a Charset-shaped jar, so the benchmarks can run offline and on
+ * inputs of any size: a lib package, modules (some of them SimpleLogic ones)
+ * with dependencies on each other, classes with inner classes which reference
+ * lib and other modules, textures and an FML annotation cache.
+ */
+public class SyntheticJar implements Opcodes {
+	private static final String[] PROFILES = { "STABLE", "TESTING", "EXPERIMENTAL" };
+
+	public int modules = 20;
+	public int classesPerModule = 50;
+	public int innerClasses = 1;
+	public int pngs = 4;
+	public long seed = 42;
+
+	private final Map<String, ModuleDefinition> modulesByPath = new HashMap<>();
+
+	/**
+	 * @return The module paths of the last generated jar, as analyze() would find them.
+	 */
+	public Map<String, ModuleDefinition> getModulesByPath() {
+		return modulesByPath;
+	}
+
+	public void write(File file) throws IOException {
+		Random random = new Random(seed);
+		List<String> classes = new ArrayList<>();
+		List<String> moduleNames = new ArrayList<>();
+		StringBuilder annotations = new StringBuilder("{");
+		modulesByPath.clear();
+
+		try (ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			put(stream, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes(Charsets.UTF_8));
+			put(stream, "pack.mcmeta", "{}".getBytes(Charsets.UTF_8));
+			put(stream, "licenses/LICENSE", "All rights reserved.".getBytes(Charsets.UTF_8));
+			put(stream, "mcmod.info", "[]".getBytes(Charsets.UTF_8));
+			put(stream, "pl/asie/charset/lib/ModCharsetLib.class", createClass("pl/asie/charset/lib/ModCharsetLib", Collections.emptyList(), "lib", Collections.emptyList(), "STABLE"));
+			put(stream, "pl/asie/charset/lib/utils/Utils.class", createClass("pl/asie/charset/lib/utils/Utils", Collections.emptyList(), null, null, null));
+
+			for (int m = 0; m < modules; m++) {
+				boolean simpleLogic = m % 5 == 4;
+				String name = simpleLogic ? "simplelogic.part" + m : "module" + (m / 3) + (m % 3 == 0 ? "" : ".sub" + m);
+				String path = name.replace('.', '/');
+				String base = (simpleLogic ? "pl/asie/" : "pl/asie/charset/module/") + path;
+
+				List<String> dependencies = new ArrayList<>();
+				if (!moduleNames.isEmpty() && m % 2 == 0) {
+					dependencies.add(moduleNames.get(random.nextInt(moduleNames.size())));
+				}
+				put(stream, base + "/Module" + m + ".class", createClass(base + "/Module" + m, Collections.emptyList(), name, dependencies, PROFILES[m % PROFILES.length]));
+
+				ModuleDefinition definition = new ModuleDefinition();
+				definition.name = name;
+				definition.contains.add(name);
+				definition.dependencies.addAll(dependencies);
+				modulesByPath.put(simpleLogic ? path.substring("simplelogic/".length()) : path, definition);
+				moduleNames.add(name);
+
+				List<String> moduleClasses = new ArrayList<>();
+				for (int c = 0; c < classesPerModule; c++) {
+					List<String> refs = new ArrayList<>();
+					refs.add("pl/asie/charset/lib/utils/Utils");
+					if (!moduleClasses.isEmpty()) {
+						refs.add(moduleClasses.get(random.nextInt(moduleClasses.size())));
+					}
+					if (!dependencies.isEmpty() || (!classes.isEmpty() && random.nextInt(8) == 0)) {
+						refs.add(classes.get(random.nextInt(classes.size())));
+					}
+
+					String className = base + "/Class" + c;
+					put(stream, className + ".class", createClass(className, refs, null, null, null));
+					for (int i = 0; i < innerClasses; i++) {
+						put(stream, className + "$Inner" + i + ".class", createClass(className + "$Inner" + i, Collections.singletonList(className), null, null, null));
+					}
+					if (c % 3 == 0) {
+						annotations.append(annotations.length() > 1 ? "," : "").append('"').append(className).append("\":{\"annotations\":[]}");
+					}
+					moduleClasses.add(className);
+				}
+				classes.addAll(moduleClasses);
+
+				for (int p = 0; p < pngs; p++) {
+					put(stream, "assets/charset/textures/" + name.replace('.', '_') + "/texture" + p + ".png", createPng(random, p));
+				}
+			}
+
+			put(stream, "assets/charset/lang/en_us.lang", "item.charset.test.name=Test".getBytes(Charsets.UTF_8));
+			put(stream, "META-INF/fml_cache_annotation.json", annotations.append('}').toString().getBytes(Charsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Writes a settings.json listing every generated module as uploadable.
+	 */
+	public void writeSettings(File defPath) throws IOException {
+		SettingsJSON settings = new SettingsJSON();
+		settings.curseGameVersions = new int[0];
+		settings.curseToken = "";
+		settings.curseFriendlyModules = new HashMap<>();
+		settings.comboModules = new HashMap<>();
+		int id = 1;
+		settings.curseFriendlyModules.put("lib", id++);
+		for (ModuleDefinition definition : modulesByPath.values()) {
+			settings.curseFriendlyModules.put(definition.name, id++);
+		}
+
+		if (defPath.isDirectory() || defPath.mkdirs()) {
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(defPath, "settings.json")), Charsets.UTF_8)) {
+				new Gson().toJson(settings, writer);
+			}
+		}
+	}
+
+	private static void put(ZipOutputStream stream, String name, byte[] data) throws IOException {
+		stream.putNextEntry(new ZipEntry(name));
+		stream.write(data);
+		stream.closeEntry();
+	}
+
+	private static byte[] createClass(String name, List<String> refs, String moduleName, List<String> dependencies, String profile) {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(V1_8, ACC_PUBLIC, name, null, "java/lang/Object", null);
+		if (moduleName != null) {
+			AnnotationVisitor annotation = writer.visitAnnotation("Lpl/asie/charset/lib/loader/CharsetModule;", true);
+			annotation.visit("name", moduleName);
+			annotation.visitEnum("profile", "Lpl/asie/charset/lib/loader/ModuleProfile;", profile);
+			AnnotationVisitor array = annotation.visitArray("dependencies");
+			for (String dependency : dependencies) {
+				array.visit(null, dependency);
+			}
+			array.visitEnd();
+			annotation.visitEnd();
+		}
+
+		writer.visitField(ACC_PUBLIC, "list", "Ljava/util/List;", "Ljava/util/List<Ljava/lang/String;>;", null).visitEnd();
+		MethodVisitor method = writer.visitMethod(ACC_PUBLIC, "run", "()V", null, null);
+		method.visitCode();
+		for (String ref : refs) {
+			method.visitTypeInsn(NEW, ref);
+			method.visitInsn(DUP);
+			method.visitMethodInsn(INVOKESPECIAL, ref, "<init>", "()V", false);
+			method.visitInsn(POP);
+		}
+		method.visitInsn(RETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] createPng(Random random, int index) throws IOException {
+		int size = 16 << random.nextInt(3);
+		BufferedImage image = new BufferedImage(size, size, index % 2 == 0 ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_BYTE_INDEXED);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				image.setRGB(x, y, random.nextInt(6) == 0 ? random.nextInt() : 0xFF000000 | (x * 9 + index) << 16 | (y * 7) << 8);
+			}
+		}
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", stream);
+		return stream.toByteArray();
+	}
+}
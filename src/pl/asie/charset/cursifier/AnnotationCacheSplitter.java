@@ -0,0 +1,174 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Splits an FML annotation cache - a JSON object keyed by internal class
+ * name - between the module jars in a single streaming pass. Each member
+ * is copied token by token straight into the writer of every jar owning
+ * its class, without building any JSON trees. The output is the same as
+ * copying the matching members into a new JsonObject and calling toString().
+ */
+public final class AnnotationCacheSplitter {
+	public static class Slice {
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private final JsonWriter writer = new JsonWriter(new OutputStreamWriter(data, Charsets.UTF_8));
+		private final List<String> classes = new ArrayList<>();
+
+		private Slice() {
+			// as JsonElement.toString() does
+			writer.setLenient(true);
+		}
+
+		public byte[] getData() {
+			return data.toByteArray();
+		}
+
+		/**
+		 * @return The classes in this slice, in file order.
+		 */
+		public List<String> getClasses() {
+			return classes;
+		}
+	}
+
+	private AnnotationCacheSplitter() {
+	}
+
+	/**
+	 * Checks that the stream holds a single JSON object, as far as Gson's
+	 * lenient parser is concerned. Does not close the stream.
+	 */
+	public static void check(InputStream stream) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(stream, Charsets.UTF_8));
+		reader.setLenient(true);
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			throw new IOException("Annotation cache is not a JSON object!");
+		}
+		reader.skipValue();
+		if (reader.peek() != JsonToken.END_DOCUMENT) {
+			throw new IOException("Annotation cache has data after its end!");
+		}
+	}
+
+	/**
+	 * @return One slice per target, in target index order.
+	 */
+	public static Slice[] split(InputStream stream, PathPrefixMatcher matcher, int targets) throws IOException {
+		Slice[] slices = new Slice[targets];
+		for (int i = 0; i < targets; i++) {
+			slices[i] = new Slice();
+			slices[i].writer.beginObject();
+		}
+
+		List<JsonWriter> writers = new ArrayList<>();
+		JsonReader reader = new JsonReader(new InputStreamReader(stream, Charsets.UTF_8));
+		reader.setLenient(true);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String className = reader.nextName();
+			BitSet owners = matcher.getClassTargets(className);
+			writers.clear();
+			for (int i = owners.nextSetBit(0); i >= 0 && i < targets; i = owners.nextSetBit(i + 1)) {
+				slices[i].classes.add(className);
+				slices[i].writer.name(className);
+				writers.add(slices[i].writer);
+			}
+
+			if (writers.isEmpty()) {
+				reader.skipValue();
+			} else {
+				copyValue(reader, writers);
+			}
+		}
+		reader.endObject();
+
+		for (Slice slice : slices) {
+			slice.writer.endObject();
+			slice.writer.close();
+		}
+		return slices;
+	}
+
+	private static void copyValue(JsonReader reader, List<JsonWriter> writers) throws IOException {
+		int depth = 0;
+		do {
+			JsonToken token = reader.peek();
+			switch (token) {
+				case BEGIN_OBJECT:
+					reader.beginObject();
+					for (JsonWriter writer : writers) {
+						writer.beginObject();
+					}
+					depth++;
+					break;
+				case END_OBJECT:
+					reader.endObject();
+					for (JsonWriter writer : writers) {
+						writer.endObject();
+					}
+					depth--;
+					break;
+				case BEGIN_ARRAY:
+					reader.beginArray();
+					for (JsonWriter writer : writers) {
+						writer.beginArray();
+					}
+					depth++;
+					break;
+				case END_ARRAY:
+					reader.endArray();
+					for (JsonWriter writer : writers) {
+						writer.endArray();
+					}
+					depth--;
+					break;
+				case NAME: {
+					String name = reader.nextName();
+					for (JsonWriter writer : writers) {
+						writer.name(name);
+					}
+					break;
+				}
+				case STRING: {
+					String value = reader.nextString();
+					for (JsonWriter writer : writers) {
+						writer.value(value);
+					}
+					break;
+				}
+				case NUMBER: {
+					// written back exactly as it was, like Gson's LazilyParsedNumber
+					String value = reader.nextString();
+					for (JsonWriter writer : writers) {
+						writer.jsonValue(value);
+					}
+					break;
+				}
+				case BOOLEAN: {
+					boolean value = reader.nextBoolean();
+					for (JsonWriter writer : writers) {
+						writer.value(value);
+					}
+					break;
+				}
+				case NULL:
+					reader.nextNull();
+					for (JsonWriter writer : writers) {
+						writer.nullValue();
+					}
+					break;
+				default:
+					throw new IOException("Unexpected " + token + " in annotation cache!");
+			}
+		} while (depth > 0);
+	}
+}
@@ -0,0 +1,46 @@
+package pl.asie.charset.cursifier;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the combined rate of everyone sharing it, by making each caller wait
+ * until the bytes sent before it would have gone out at that rate.
+ */
+public class BandwidthLimiter {
+	private final long bytesPerSecond;
+	private long nextFree = System.nanoTime();
+
+	/**
+	 * @param bytesPerSecond The cap, or 0 for none.
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public void acquire(int bytes) throws InterruptedIOException {
+		if (bytesPerSecond <= 0) {
+			return;
+		}
+
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			// idle time does not build up into a burst
+			if (nextFree < now) {
+				nextFree = now;
+			}
+			wait = nextFree - now;
+			nextFree += bytes * 1000000000L / bytesPerSecond;
+		}
+
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling upload");
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content-addressed on-disk cache in front of another {@link PngOptimizer}.
+ * Entries are keyed by the SHA-256 of the optimizer settings and the input
+ * image; a file's modification time doubles as its last use for LRU eviction.
+ */
+public class CachingPngOptimizer implements PngOptimizer {
+	private final PngOptimizer parent;
+	private final File directory;
+	private final long maxSize;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public CachingPngOptimizer(PngOptimizer parent, File directory, long maxSize) {
+		this.parent = parent;
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public byte[] optimize(byte[] data) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(parent.getSettings(), Charsets.UTF_8);
+		hasher.putBytes(data);
+		File cacheFile = new File(directory, hasher.hash().toString() + ".png");
+
+		if (cacheFile.isFile()) {
+			try {
+				byte[] out = Files.toByteArray(cacheFile);
+				cacheFile.setLastModified(System.currentTimeMillis());
+				hits.incrementAndGet();
+				return out;
+			} catch (IOException e) {
+				// evicted or damaged underneath us - just optimize again
+			}
+		}
+
+		misses.incrementAndGet();
+		byte[] out = parent.optimize(data);
+
+		if (directory.isDirectory() || directory.mkdirs()) {
+			File tmpFile = File.createTempFile("png", ".tmp", directory);
+			Files.write(out, tmpFile);
+			java.nio.file.Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return out;
+	}
+
+	@Override
+	public String getSettings() {
+		return parent.getSettings();
+	}
+
+	/**
+	 * Drops the least recently used entries until the cache fits in its size
+	 * limit, then prints the hit/miss statistics for this run.
+	 */
+	public void close() {
+		File[] cacheFiles = directory.listFiles((dir, name) -> name.endsWith(".png"));
+		int evicted = 0;
+		if (cacheFiles != null) {
+			long size = 0;
+			for (File f : cacheFiles) {
+				size += f.length();
+			}
+
+			Arrays.sort(cacheFiles, Comparator.comparingLong(File::lastModified));
+			for (File f : cacheFiles) {
+				if (size <= maxSize) {
+					break;
+				}
+				size -= f.length();
+				if (f.delete()) {
+					evicted++;
+				}
+			}
+		}
+
+		int total = hits.get() + misses.get();
+		System.out.println("PNG cache: " + hits.get() + " hits, " + misses.get() + " misses"
+				+ (total > 0 ? " (" + (hits.get() * 100 / total) + "% hit rate)" : "")
+				+ ", " + evicted + " evicted");
+	}
+}
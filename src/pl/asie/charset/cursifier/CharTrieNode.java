@@ -0,0 +1,57 @@
+package pl.asie.charset.cursifier;
+
+/**
+ * Node of a character trie, as used by {@link ModulePathIndex} and
+ * {@link PathPrefixMatcher}. Children live in two small parallel arrays,
+ * which beats a map for tries as narrow as ours.
+ */
+final class CharTrieNode<V> {
+	private char[] keys = new char[0];
+	private CharTrieNode<V>[] children = newArray(0);
+	V value;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <V> CharTrieNode<V>[] newArray(int length) {
+		return new CharTrieNode[length];
+	}
+
+	CharTrieNode<V> get(char c) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == c) {
+				return children[i];
+			}
+		}
+		return null;
+	}
+
+	CharTrieNode<V> getOrCreate(char c) {
+		CharTrieNode<V> node = get(c);
+		if (node == null) {
+			node = new CharTrieNode<>();
+			char[] newKeys = new char[keys.length + 1];
+			CharTrieNode<V>[] newChildren = newArray(children.length + 1);
+			System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			System.arraycopy(children, 0, newChildren, 0, children.length);
+			newKeys[keys.length] = c;
+			newChildren[children.length] = node;
+			keys = newKeys;
+			children = newChildren;
+		}
+		return node;
+	}
+
+	/**
+	 * @return The node at the end of path, creating any missing ones.
+	 */
+	CharTrieNode<V> getOrCreate(String path) {
+		CharTrieNode<V> node = this;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.getOrCreate(path.charAt(i));
+		}
+		return node;
+	}
+
+	CharTrieNode<V>[] getChildren() {
+		return children;
+	}
+}
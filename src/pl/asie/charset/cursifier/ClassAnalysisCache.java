@@ -0,0 +1,259 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers what analyze() found in each class file - its module annotations
+ * and the Charset classes it references - keyed by the hash of the class
+ * bytes, so classes unchanged since the last run are not parsed again.
+ *
+ * Stored as one binary file: a string table, then every class as indices
+ * into it. Only the classes looked up or added during a run are written
+ * back, which keeps the file from growing with every release.
+ */
+public class ClassAnalysisCache {
+	private static final int MAGIC = 0x43434143;
+	private static final int VERSION = 1;
+
+	public static class Entry {
+		private final List<ModuleDefinition> annotations;
+		private volatile String[] references;
+
+		private Entry(List<ModuleDefinition> annotations, String[] references) {
+			this.annotations = annotations;
+			this.references = references;
+		}
+
+		/**
+		 * @return Fresh copies of the module annotations found on the class, in class file order.
+		 */
+		public List<ModuleDefinition> getAnnotations() {
+			List<ModuleDefinition> result = new ArrayList<>(annotations.size());
+			for (ModuleDefinition annotation : annotations) {
+				result.add(copy(annotation));
+			}
+			return result;
+		}
+
+		/**
+		 * @return The referenced Charset classes, or null if the class was never scanned for them.
+		 */
+		public String[] getReferences() {
+			return references;
+		}
+
+		public void setReferences(String[] references) {
+			this.references = references;
+		}
+	}
+
+	private final Map<HashCode, Entry> loaded = new ConcurrentHashMap<>();
+	private final Map<HashCode, Entry> used = new ConcurrentHashMap<>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public static HashCode hash(byte[] data) {
+		// only has to tell class versions apart, not resist tampering
+		return Hashing.murmur3_128().hashBytes(data);
+	}
+
+	public Entry get(HashCode hash) {
+		Entry entry = used.get(hash);
+		if (entry == null) {
+			entry = loaded.get(hash);
+			if (entry != null) {
+				used.put(hash, entry);
+			}
+		}
+
+		if (entry != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @param annotations The module annotations found on the class; copied.
+	 */
+	public Entry put(HashCode hash, List<ModuleDefinition> annotations) {
+		List<ModuleDefinition> copies = new ArrayList<>(annotations.size());
+		for (ModuleDefinition annotation : annotations) {
+			copies.add(copy(annotation));
+		}
+		Entry entry = new Entry(copies, null);
+		used.put(hash, entry);
+		return entry;
+	}
+
+	private static ModuleDefinition copy(ModuleDefinition def) {
+		ModuleDefinition result = new ModuleDefinition();
+		result.name = def.name;
+		result.stability = def.stability;
+		result.contains.addAll(def.contains);
+		result.dependencies.addAll(def.dependencies);
+		result.conflicts.addAll(def.conflicts);
+		return result;
+	}
+
+	/**
+	 * Loads the entries of a previous run. A missing, outdated or damaged
+	 * file just leaves the cache empty.
+	 */
+	public void load(File file) {
+		if (!file.isFile()) {
+			return;
+		}
+
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (stream.readInt() != MAGIC || stream.readInt() != VERSION || stream.readBoolean() != Main.USE_ASM_REFERENCE_SCAN) {
+				System.out.println("Ignoring outdated class analysis cache");
+				return;
+			}
+
+			String[] strings = new String[readVarInt(stream)];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = stream.readUTF();
+			}
+
+			int count = readVarInt(stream);
+			byte[] hash = new byte[16];
+			for (int i = 0; i < count; i++) {
+				stream.readFully(hash);
+				List<ModuleDefinition> annotations = new ArrayList<>();
+				for (int j = readVarInt(stream); j > 0; j--) {
+					ModuleDefinition def = new ModuleDefinition();
+					int name = readVarInt(stream);
+					def.name = name > 0 ? strings[name - 1] : null;
+					def.stability = stream.readByte();
+					readStrings(stream, strings, def.contains);
+					readStrings(stream, strings, def.dependencies);
+					readStrings(stream, strings, def.conflicts);
+					annotations.add(def);
+				}
+
+				String[] references = null;
+				int referenceCount = readVarInt(stream);
+				if (referenceCount > 0) {
+					references = new String[referenceCount - 1];
+					for (int j = 0; j < references.length; j++) {
+						references[j] = strings[readVarInt(stream)];
+					}
+				}
+				loaded.put(HashCode.fromBytes(hash.clone()), new Entry(annotations, references));
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Could not read class analysis cache, starting over: " + e);
+			loaded.clear();
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		// other threads may still be adding entries and references, so work from a snapshot
+		List<HashCode> hashes = new ArrayList<>(used.keySet());
+		List<Entry> entries = new ArrayList<>(hashes.size());
+		String[][] referenceLists = new String[hashes.size()][];
+		for (int i = 0; i < hashes.size(); i++) {
+			entries.add(used.get(hashes.get(i)));
+			referenceLists[i] = entries.get(i).references;
+		}
+
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			for (ModuleDefinition def : entries.get(i).annotations) {
+				if (def.name != null) {
+					strings.putIfAbsent(def.name, strings.size());
+				}
+				for (List<String> list : Arrays.asList(def.contains, def.dependencies, def.conflicts)) {
+					for (String s : list) {
+						strings.putIfAbsent(s, strings.size());
+					}
+				}
+			}
+			if (referenceLists[i] != null) {
+				for (String s : referenceLists[i]) {
+					strings.putIfAbsent(s, strings.size());
+				}
+			}
+		}
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(data);
+		stream.writeInt(MAGIC);
+		stream.writeInt(VERSION);
+		stream.writeBoolean(Main.USE_ASM_REFERENCE_SCAN);
+		writeVarInt(stream, strings.size());
+		for (String s : strings.keySet()) {
+			stream.writeUTF(s);
+		}
+
+		writeVarInt(stream, entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			stream.write(hashes.get(i).asBytes());
+			writeVarInt(stream, entries.get(i).annotations.size());
+			for (ModuleDefinition def : entries.get(i).annotations) {
+				writeVarInt(stream, def.name != null ? strings.get(def.name) + 1 : 0);
+				stream.writeByte(def.stability);
+				writeStrings(stream, strings, def.contains);
+				writeStrings(stream, strings, def.dependencies);
+				writeStrings(stream, strings, def.conflicts);
+			}
+
+			// 0 for not scanned, otherwise the count plus one
+			String[] references = referenceLists[i];
+			writeVarInt(stream, references != null ? references.length + 1 : 0);
+			if (references != null) {
+				for (String s : references) {
+					writeVarInt(stream, strings.get(s));
+				}
+			}
+		}
+		stream.flush();
+		Utils.writeAtomically(file, data.toByteArray());
+
+		int total = hits.get() + misses.get();
+		System.out.println("Class analysis cache: " + hits.get() + " hits, " + misses.get() + " misses"
+				+ (total > 0 ? " (" + (hits.get() * 100 / total) + "% hit rate)" : "")
+				+ ", " + entries.size() + " classes kept");
+	}
+
+	private static void readStrings(DataInputStream stream, String[] strings, List<String> list) throws IOException {
+		for (int i = readVarInt(stream); i > 0; i--) {
+			list.add(strings[readVarInt(stream)]);
+		}
+	}
+
+	private static void writeStrings(DataOutputStream stream, Map<String, Integer> strings, List<String> list) throws IOException {
+		writeVarInt(stream, list.size());
+		for (String s : list) {
+			writeVarInt(stream, strings.get(s));
+		}
+	}
+
+	private static int readVarInt(DataInputStream stream) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = stream.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint!");
+	}
+
+	private static void writeVarInt(DataOutputStream stream, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			stream.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		stream.writeByte(value);
+	}
+}
@@ -0,0 +1,571 @@
+package pl.asie.charset.cursifier;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists the classes referenced by a class file straight from its constant
+ * pool and the few attributes holding descriptors or signatures, without
+ * building any ASM visitors or bytecode. Produces the same set as running a
+ * {@link ModuleUploader.ListingRemapper} through a ClassRemapper.
+ *
+ * Only constant pool entries which are actually used count - javac leaves
+ * behind class entries for inlined constants, which ASM never visits.
+ */
+public final class ClassReferenceExtractor {
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+	private final byte[] data;
+	private final int[] offsets;
+	private final String[] strings;
+	private final boolean[] used;
+	private final Set<String> refClasses = new HashSet<>();
+	private int pos;
+
+	private ClassReferenceExtractor(byte[] data) {
+		this.data = data;
+		int count = readUnsignedShort(8);
+		this.offsets = new int[count];
+		this.strings = new String[count];
+		this.used = new boolean[count];
+		this.pos = 10;
+	}
+
+	public static Set<String> getReferencedClasses(byte[] data) {
+		ClassReferenceExtractor extractor = new ClassReferenceExtractor(data);
+		extractor.readConstantPool();
+		extractor.readClass();
+		extractor.resolveConstantPool();
+		return extractor.refClasses;
+	}
+
+	private int readUnsignedShort(int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private int readInt(int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	private int nextShort() {
+		int v = readUnsignedShort(pos);
+		pos += 2;
+		return v;
+	}
+
+	private String readUtf8(int index) {
+		String s = strings[index];
+		if (s == null) {
+			int offset = offsets[index];
+			int length = readUnsignedShort(offset);
+			int end = offset + 2 + length;
+			char[] chars = new char[length];
+			int n = 0;
+			for (int i = offset + 2; i < end; ) {
+				int c = data[i++] & 0xFF;
+				if (c < 0x80) {
+					chars[n++] = (char) c;
+				} else if (c < 0xE0) {
+					chars[n++] = (char) (((c & 0x1F) << 6) | (data[i++] & 0x3F));
+				} else {
+					chars[n++] = (char) (((c & 0x0F) << 12) | ((data[i++] & 0x3F) << 6) | (data[i++] & 0x3F));
+				}
+			}
+			s = strings[index] = new String(chars, 0, n);
+		}
+		return s;
+	}
+
+	private String readClassName(int index) {
+		return readUtf8(readUnsignedShort(offsets[index]));
+	}
+
+	private void addInternalName(String name) {
+		if (name.charAt(0) == '[') {
+			addDescriptor(name);
+		} else {
+			refClasses.add(name);
+		}
+	}
+
+	private void addDescriptor(String desc) {
+		int i = 0;
+		while (i < desc.length()) {
+			if (desc.charAt(i) == 'L') {
+				int end = desc.indexOf(';', i);
+				refClasses.add(desc.substring(i + 1, end));
+				i = end + 1;
+			} else {
+				i++;
+			}
+		}
+	}
+
+	private void addSignature(String signature, boolean typeSignature) {
+		// Mirrors SignatureRemapper, which also maps the outer classes of inner class types.
+		SignatureVisitor visitor = new SignatureVisitor(Opcodes.ASM7) {
+			private final List<String> classNames = new ArrayList<>();
+
+			@Override
+			public void visitClassType(String name) {
+				classNames.add(name);
+				refClasses.add(name);
+			}
+
+			@Override
+			public void visitInnerClassType(String name) {
+				String outerClassName = classNames.remove(classNames.size() - 1);
+				String className = outerClassName + '$' + name;
+				classNames.add(className);
+				refClasses.add(outerClassName);
+				refClasses.add(className);
+			}
+
+			@Override
+			public void visitEnd() {
+				classNames.remove(classNames.size() - 1);
+			}
+		};
+
+		if (typeSignature) {
+			new SignatureReader(signature).acceptType(visitor);
+		} else {
+			new SignatureReader(signature).accept(visitor);
+		}
+	}
+
+	private void readConstantPool() {
+		for (int i = 1; i < offsets.length; i++) {
+			offsets[i] = pos + 1;
+			int tag = data[pos];
+			switch (tag) {
+				case CONSTANT_UTF8:
+					pos += 3 + readUnsignedShort(pos + 1);
+					break;
+				case CONSTANT_INTEGER:
+				case CONSTANT_FLOAT:
+				case CONSTANT_FIELDREF:
+				case CONSTANT_METHODREF:
+				case CONSTANT_INTERFACE_METHODREF:
+				case CONSTANT_NAME_AND_TYPE:
+				case CONSTANT_DYNAMIC:
+				case CONSTANT_INVOKE_DYNAMIC:
+					pos += 5;
+					break;
+				case CONSTANT_LONG:
+				case CONSTANT_DOUBLE:
+					pos += 9;
+					i++;
+					break;
+				case CONSTANT_METHOD_HANDLE:
+					pos += 4;
+					break;
+				case CONSTANT_CLASS:
+				case CONSTANT_STRING:
+				case CONSTANT_METHOD_TYPE:
+				case CONSTANT_MODULE:
+				case CONSTANT_PACKAGE:
+					pos += 3;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+			}
+		}
+
+	}
+
+	private void markUsed(int index) {
+		if (index == 0 || used[index]) {
+			return;
+		}
+
+		used[index] = true;
+		int offset = offsets[index];
+		switch (data[offset - 1]) {
+			case CONSTANT_FIELDREF:
+			case CONSTANT_METHODREF:
+			case CONSTANT_INTERFACE_METHODREF:
+				markUsed(readUnsignedShort(offset));
+				markUsed(readUnsignedShort(offset + 2));
+				break;
+			case CONSTANT_METHOD_HANDLE:
+				markUsed(readUnsignedShort(offset + 1));
+				break;
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				markUsed(readUnsignedShort(offset + 2));
+				break;
+		}
+	}
+
+	private void resolveConstantPool() {
+		for (int i = 1; i < offsets.length; i++) {
+			if (!used[i]) {
+				continue;
+			}
+
+			int offset = offsets[i];
+			switch (data[offset - 1]) {
+				case CONSTANT_CLASS:
+					addInternalName(readClassName(i));
+					break;
+				case CONSTANT_FIELDREF:
+				case CONSTANT_METHODREF:
+				case CONSTANT_INTERFACE_METHODREF:
+					// member owners are listed as-is, even when they are array types
+					refClasses.add(readClassName(readUnsignedShort(offset)));
+					break;
+				case CONSTANT_NAME_AND_TYPE:
+					addDescriptor(readUtf8(readUnsignedShort(offset + 2)));
+					break;
+				case CONSTANT_METHOD_TYPE:
+					addDescriptor(readUtf8(readUnsignedShort(offset)));
+					break;
+			}
+		}
+	}
+
+	private void readClass() {
+		pos += 2; // access flags
+		markUsed(nextShort());
+		markUsed(nextShort());
+		int interfaces = nextShort();
+		for (int i = 0; i < interfaces; i++) {
+			markUsed(nextShort());
+		}
+
+		for (int j = 0; j < 2; j++) {
+			int memberCount = nextShort();
+			for (int i = 0; i < memberCount; i++) {
+				pos += 4; // access flags, name
+				addDescriptor(readUtf8(nextShort()));
+				readAttributes(j == 0);
+			}
+		}
+
+		readAttributes(false);
+	}
+
+	private void readAttributes(boolean field) {
+		int count = nextShort();
+		for (int i = 0; i < count; i++) {
+			String name = readUtf8(nextShort());
+			int length = readInt(pos);
+			pos += 4;
+			int end = pos + length;
+
+			switch (name) {
+				case "Signature":
+					addSignature(readUtf8(readUnsignedShort(pos)), field);
+					break;
+				case "RuntimeVisibleAnnotations":
+				case "RuntimeInvisibleAnnotations":
+					readAnnotations();
+					break;
+				case "RuntimeVisibleParameterAnnotations":
+				case "RuntimeInvisibleParameterAnnotations": {
+					int parameters = data[pos++] & 0xFF;
+					for (int p = 0; p < parameters; p++) {
+						readAnnotations();
+					}
+					break;
+				}
+				case "RuntimeVisibleTypeAnnotations":
+				case "RuntimeInvisibleTypeAnnotations":
+					readTypeAnnotations();
+					break;
+				case "AnnotationDefault":
+					readElementValue();
+					break;
+				case "Code": {
+					pos += 4; // max stack, max locals
+					int codeLength = readInt(pos);
+					pos += 4;
+					readCode(pos, pos + codeLength);
+					pos += codeLength;
+					int exceptions = nextShort();
+					for (int e = 0; e < exceptions; e++) {
+						markUsed(readUnsignedShort(pos + 6));
+						pos += 8;
+					}
+					readAttributes(false);
+					break;
+				}
+				case "StackMapTable":
+					readStackMapTable();
+					break;
+				case "Exceptions":
+				case "NestMembers": {
+					int classes = nextShort();
+					for (int c = 0; c < classes; c++) {
+						markUsed(nextShort());
+					}
+					break;
+				}
+				case "NestHost":
+					markUsed(nextShort());
+					break;
+				case "InnerClasses": {
+					int classes = nextShort();
+					for (int c = 0; c < classes; c++) {
+						markUsed(nextShort());
+						markUsed(nextShort());
+						pos += 4; // inner name, access flags
+					}
+					break;
+				}
+				case "EnclosingMethod":
+					markUsed(nextShort());
+					markUsed(nextShort());
+					break;
+				case "BootstrapMethods": {
+					int methods = nextShort();
+					for (int m = 0; m < methods; m++) {
+						markUsed(nextShort());
+						int arguments = nextShort();
+						for (int a = 0; a < arguments; a++) {
+							markUsed(nextShort());
+						}
+					}
+					break;
+				}
+				case "LocalVariableTable":
+				case "LocalVariableTypeTable": {
+					boolean descriptor = name.equals("LocalVariableTable");
+					int entries = nextShort();
+					for (int e = 0; e < entries; e++) {
+						String s = readUtf8(readUnsignedShort(pos + 6));
+						if (descriptor) {
+							addDescriptor(s);
+						} else {
+							addSignature(s, true);
+						}
+						pos += 10;
+					}
+					break;
+				}
+			}
+
+			pos = end;
+		}
+	}
+
+	private void readCode(int start, int end) {
+		int i = start;
+		while (i < end) {
+			int opcode = data[i] & 0xFF;
+			switch (opcode) {
+				case Opcodes.LDC:
+					markUsed(data[i + 1] & 0xFF);
+					i += 2;
+					break;
+				case Opcodes.LDC + 1: // LDC_W
+				case Opcodes.LDC + 2: // LDC2_W
+				case Opcodes.GETSTATIC:
+				case Opcodes.PUTSTATIC:
+				case Opcodes.GETFIELD:
+				case Opcodes.PUTFIELD:
+				case Opcodes.INVOKEVIRTUAL:
+				case Opcodes.INVOKESPECIAL:
+				case Opcodes.INVOKESTATIC:
+				case Opcodes.NEW:
+				case Opcodes.ANEWARRAY:
+				case Opcodes.CHECKCAST:
+				case Opcodes.INSTANCEOF:
+					markUsed(readUnsignedShort(i + 1));
+					i += 3;
+					break;
+				case Opcodes.INVOKEINTERFACE:
+				case Opcodes.INVOKEDYNAMIC:
+					markUsed(readUnsignedShort(i + 1));
+					i += 5;
+					break;
+				case Opcodes.MULTIANEWARRAY:
+					markUsed(readUnsignedShort(i + 1));
+					i += 4;
+					break;
+				case Opcodes.TABLESWITCH: {
+					i += 4 - ((i - start) & 3);
+					int low = readInt(i + 4);
+					int high = readInt(i + 8);
+					i += 12 + 4 * (high - low + 1);
+					break;
+				}
+				case Opcodes.LOOKUPSWITCH: {
+					i += 4 - ((i - start) & 3);
+					i += 8 + 8 * readInt(i + 4);
+					break;
+				}
+				case 0xC4: // WIDE
+					i += (data[i + 1] & 0xFF) == Opcodes.IINC ? 6 : 4;
+					break;
+				case Opcodes.BIPUSH:
+				case Opcodes.NEWARRAY:
+				case Opcodes.RET:
+					i += 2;
+					break;
+				case Opcodes.SIPUSH:
+				case Opcodes.IINC:
+				case Opcodes.IFNULL:
+				case Opcodes.IFNONNULL:
+					i += 3;
+					break;
+				case 0xC8: // GOTO_W
+				case 0xC9: // JSR_W
+					i += 5;
+					break;
+				default:
+					if ((opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD) || (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE)) {
+						i += 2;
+					} else if (opcode >= Opcodes.IFEQ && opcode <= Opcodes.JSR) {
+						i += 3;
+					} else {
+						i += 1;
+					}
+					break;
+			}
+		}
+	}
+
+	private void readStackMapTable() {
+		int frames = nextShort();
+		for (int f = 0; f < frames; f++) {
+			int type = data[pos++] & 0xFF;
+			if (type < 64) {
+				continue;
+			} else if (type < 128) {
+				readVerificationType();
+			} else if (type == 247) {
+				pos += 2;
+				readVerificationType();
+			} else if (type >= 248 && type <= 251) {
+				pos += 2;
+			} else if (type >= 252 && type <= 254) {
+				pos += 2;
+				for (int i = 0; i < type - 251; i++) {
+					readVerificationType();
+				}
+			} else if (type == 255) {
+				pos += 2;
+				for (int j = 0; j < 2; j++) {
+					int count = nextShort();
+					for (int i = 0; i < count; i++) {
+						readVerificationType();
+					}
+				}
+			}
+		}
+	}
+
+	private void readVerificationType() {
+		int tag = data[pos++] & 0xFF;
+		if (tag == 7) {
+			markUsed(nextShort());
+		} else if (tag == 8) {
+			pos += 2;
+		}
+	}
+
+	private void readAnnotations() {
+		int count = nextShort();
+		for (int i = 0; i < count; i++) {
+			readAnnotation();
+		}
+	}
+
+	private void readTypeAnnotations() {
+		int count = nextShort();
+		for (int i = 0; i < count; i++) {
+			int targetType = data[pos++] & 0xFF;
+			switch (targetType) {
+				case 0x00:
+				case 0x01:
+				case 0x16:
+					pos += 1;
+					break;
+				case 0x10:
+				case 0x11:
+				case 0x12:
+				case 0x17:
+				case 0x42:
+				case 0x43:
+				case 0x44:
+				case 0x45:
+				case 0x46:
+					pos += 2;
+					break;
+				case 0x40:
+				case 0x41:
+					int ranges = nextShort();
+					pos += 6 * ranges;
+					break;
+				case 0x47:
+				case 0x48:
+				case 0x49:
+				case 0x4A:
+				case 0x4B:
+					pos += 3;
+					break;
+			}
+			pos += 1 + 2 * (data[pos] & 0xFF); // type path
+			readAnnotation();
+		}
+	}
+
+	private void readAnnotation() {
+		addDescriptor(readUtf8(nextShort()));
+		int pairs = nextShort();
+		for (int i = 0; i < pairs; i++) {
+			pos += 2; // element name
+			readElementValue();
+		}
+	}
+
+	private void readElementValue() {
+		int tag = data[pos++] & 0xFF;
+		switch (tag) {
+			case 'e':
+				addDescriptor(readUtf8(nextShort()));
+				pos += 2;
+				break;
+			case 'c':
+				addDescriptor(readUtf8(nextShort()));
+				break;
+			case '@':
+				readAnnotation();
+				break;
+			case '[': {
+				int count = nextShort();
+				for (int i = 0; i < count; i++) {
+					readElementValue();
+				}
+				break;
+			}
+			default:
+				pos += 2;
+				break;
+		}
+	}
+}
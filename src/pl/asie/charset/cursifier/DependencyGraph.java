@@ -0,0 +1,124 @@
+package pl.asie.charset.cursifier;
+
+import java.util.*;
+
+/**
+ * The module dependency graph, with every module's transitive dependencies
+ * computed once up front. Dependencies which are not Charset modules (for
+ * instance other mods) are kept as leaves.
+ */
+public class DependencyGraph {
+	private final Map<String, Integer> indices = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final List<BitSet> closures = new ArrayList<>();
+	private final List<String> cycles = new ArrayList<>();
+	private final Map<String, List<String>> conflicts = new TreeMap<>();
+	private final int moduleCount;
+
+	public DependencyGraph(Map<String, ModuleDefinition> modules) {
+		List<String> moduleNames = new ArrayList<>(modules.keySet());
+		Collections.sort(moduleNames);
+		for (String name : moduleNames) {
+			index(name);
+		}
+		moduleCount = moduleNames.size();
+
+		List<BitSet> direct = new ArrayList<>();
+		for (String name : moduleNames) {
+			BitSet set = new BitSet();
+			for (String dep : modules.get(name).dependencies) {
+				set.set(index(dep));
+			}
+			direct.add(set);
+		}
+
+		for (int i = 0; i < names.size(); i++) {
+			BitSet closure = new BitSet();
+			if (i < moduleCount) {
+				Deque<Integer> queue = new ArrayDeque<>();
+				queue.add(i);
+				while (!queue.isEmpty()) {
+					int current = queue.poll();
+					if (current >= moduleCount) {
+						continue;
+					}
+					BitSet next = direct.get(current);
+					for (int j = next.nextSetBit(0); j >= 0; j = next.nextSetBit(j + 1)) {
+						if (!closure.get(j)) {
+							closure.set(j);
+							queue.add(j);
+						}
+					}
+				}
+			}
+			closures.add(closure);
+		}
+
+		for (String name : moduleNames) {
+			int i = indices.get(name);
+			if (closures.get(i).get(i)) {
+				cycles.add(name);
+			}
+
+			for (String conflict : modules.get(name).conflicts) {
+				Integer j = indices.get(conflict);
+				if (j != null && closures.get(i).get(j)) {
+					conflicts.computeIfAbsent(name, k -> new ArrayList<>()).add(conflict);
+				}
+			}
+		}
+	}
+
+	private int index(String name) {
+		Integer index = indices.get(name);
+		if (index == null) {
+			index = names.size();
+			indices.put(name, index);
+			names.add(name);
+		}
+		return index;
+	}
+
+	/**
+	 * @return Whether module depends on dependency, directly or not.
+	 */
+	public boolean dependsOn(String module, String dependency) {
+		Integer i = indices.get(module);
+		Integer j = indices.get(dependency);
+		return i != null && j != null && closures.get(i).get(j);
+	}
+
+	public Set<String> getDependencies(String module) {
+		Set<String> result = new TreeSet<>();
+		Integer i = indices.get(module);
+		if (i != null) {
+			BitSet closure = closures.get(i);
+			for (int j = closure.nextSetBit(0); j >= 0; j = closure.nextSetBit(j + 1)) {
+				result.add(names.get(j));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return For each module, the modules it conflicts with but still ends up depending on.
+	 */
+	public Map<String, List<String>> getConflicts() {
+		return Collections.unmodifiableMap(conflicts);
+	}
+
+	public void print() {
+		System.out.println("Module graph:");
+		// modules were indexed first, in sorted order
+		for (int i = 0; i < moduleCount; i++) {
+			System.out.println("- " + names.get(i) + " -> " + getDependencies(names.get(i)));
+		}
+
+		for (String name : cycles) {
+			System.err.println("Module " + name + " depends on itself!");
+		}
+		for (Map.Entry<String, List<String>> entry : conflicts.entrySet()) {
+			System.err.println("Module " + entry.getKey() + " depends on conflicting modules " + entry.getValue() + "!");
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package pl.asie.charset.cursifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named blobs - replacement jar entries and the like - kept on the heap up
+ * to a memory budget, and in a temporary spill file beyond it. Only the
+ * index stays on the heap for spilled entries; reading them back leaves
+ * the caching to the OS. Reads may happen from any number of threads.
+ */
+public class EntryStore implements Closeable {
+	private static class Location {
+		private final long offset;
+		private final int length;
+
+		private Location(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final long memoryBudget;
+	private final File directory;
+	private final Map<String, byte[]> inMemory = new ConcurrentHashMap<>();
+	private final Map<String, Location> spilled = new ConcurrentHashMap<>();
+	private long memoryUsed, spillSize;
+	private volatile FileChannel spillFile;
+
+	/**
+	 * @param memoryBudget The number of bytes to keep on the heap before spilling.
+	 * @param directory Where to create the spill file, or null for the default temporary directory.
+	 */
+	public EntryStore(long memoryBudget, File directory) {
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+	}
+
+	public synchronized void put(String name, byte[] data) throws IOException {
+		byte[] old = inMemory.remove(name);
+		if (old != null) {
+			memoryUsed -= old.length;
+		}
+		// a replaced spilled entry's space is simply left unused
+		spilled.remove(name);
+
+		if (memoryUsed + data.length <= memoryBudget) {
+			inMemory.put(name, data);
+			memoryUsed += data.length;
+			return;
+		}
+
+		if (spillFile == null) {
+			File file = File.createTempFile("entries", ".spill", directory);
+			spillFile = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long offset = spillSize;
+		while (buffer.hasRemaining()) {
+			spillFile.write(buffer, offset + buffer.position());
+		}
+		spillSize += data.length;
+		spilled.put(name, new Location(offset, data.length));
+	}
+
+	public boolean containsKey(String name) {
+		return inMemory.containsKey(name) || spilled.containsKey(name);
+	}
+
+	/**
+	 * @return The data stored under the name, or null. Spilled entries are read back into a new array.
+	 */
+	public byte[] get(String name) throws IOException {
+		byte[] data = inMemory.get(name);
+		if (data != null) {
+			return data;
+		}
+
+		Location location = spilled.get(name);
+		if (location == null) {
+			return null;
+		}
+
+		// positional reads do not disturb each other
+		ByteBuffer buffer = ByteBuffer.allocate(location.length);
+		while (buffer.hasRemaining()) {
+			if (spillFile.read(buffer, location.offset + buffer.position()) < 0) {
+				throw new IOException("Spill file truncated at " + name + "!");
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return The number of bytes which did not fit in the budget and went to disk.
+	 */
+	public synchronized long getSpilledBytes() {
+		return spillSize;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		inMemory.clear();
+		spilled.clear();
+		memoryUsed = 0;
+		spillSize = 0;
+		if (spillFile != null) {
+			spillFile.close();
+			spillFile = null;
+		}
+	}
+}
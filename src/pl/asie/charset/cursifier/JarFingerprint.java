@@ -0,0 +1,66 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The content fingerprint recorded in state.json: the SHA-256 of the sorted
+ * SHA-256 hex digests of every entry's uncompressed data. It ignores entry
+ * names, order, timestamps and compression.
+ */
+public final class JarFingerprint {
+	private JarFingerprint() {
+	}
+
+	public static String hash(InputStream stream, byte[] buffer) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		int n;
+		while ((n = stream.read(buffer)) > 0) {
+			hasher.putBytes(buffer, 0, n);
+		}
+		return hasher.hash().toString();
+	}
+
+	public static String hash(byte[] data) {
+		return Hashing.sha256().hashBytes(data).toString();
+	}
+
+	public static String combine(Collection<String> entryHashes) {
+		List<String> hashes = new ArrayList<>(entryHashes);
+		hashes.sort(String::compareTo);
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		for (String s : hashes) {
+			hasher.putString(s, Charsets.US_ASCII);
+		}
+		return hasher.hash().toString();
+	}
+
+	public static String compute(File file) throws IOException {
+		try (ZipInputStream stream = new ZipInputStream(new FileInputStream(file))) {
+			return compute(stream);
+		}
+	}
+
+	/**
+	 * Reads the stream up to its last entry, leaving it open.
+	 */
+	public static String compute(ZipInputStream stream) throws IOException {
+		List<String> hashes = new ArrayList<>();
+		byte[] buffer = new byte[16384];
+		while (stream.getNextEntry() != null) {
+			hashes.add(hash(stream, buffer));
+		}
+		return combine(hashes);
+	}
+}
@@ -0,0 +1,380 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Builds any number of jars out of a single source jar. Every entry is
+ * classified once, then offered to each target in the order they were
+ * added, on one thread, so a target may look at what the ones before it
+ * claimed; each jar is then
+ * patched and written by its own task. Entries no patcher touches are
+ * copied without being recompressed, and hashed at most once.
+ *
+ * Patchers are called concurrently for different targets, so they may only
+ * read shared state. The {@link SourceJar} is safe to read from any thread.
+ *
+ * Entries found in the replacement {@link EntryStore} take the place of the
+ * source's in every jar; only their hash is kept while planning, and the
+ * data is read back from the store as each jar is written.
+ *
+ * Given the {@link PackageManifestJSON} of the previous run, jars which would
+ * come out with the same entries and contents are left as they are.
+ */
+public class JarPackager implements Closeable {
+	private static final BitSet NO_OWNERS = new BitSet();
+
+	private static class Target {
+		private final File file;
+		private final BiPredicate<String, BitSet> pass;
+		private final BiFunction<String, InputStream, byte[]> patcher;
+		private final List<SourceJar.Entry> entries = new ArrayList<>();
+
+		private Target(File file, BiPredicate<String, BitSet> pass, BiFunction<String, InputStream, byte[]> patcher) {
+			this.file = file;
+			this.pass = pass;
+			this.patcher = patcher;
+		}
+	}
+
+	private static class PlannedEntry {
+		private final SourceJar.Entry entry;
+		private final boolean replaced;
+		/** What the patcher returned - small by contract, unlike replacements. */
+		private final byte[] patch;
+		private final String hash;
+
+		private PlannedEntry(SourceJar.Entry entry, boolean replaced, byte[] patch, String hash) {
+			this.entry = entry;
+			this.replaced = replaced;
+			this.patch = patch;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Only inflates the entry once someone actually reads from it - most
+	 * patchers return without ever looking at the original data.
+	 */
+	private class EntryInputStream extends InputStream {
+		private final SourceJar.Entry entry;
+		private final byte[][] data;
+		private InputStream parent;
+
+		private EntryInputStream(SourceJar.Entry entry, byte[][] data) {
+			this.entry = entry;
+			this.data = data;
+		}
+
+		private InputStream parent() throws IOException {
+			if (parent == null) {
+				if (data[0] == null) {
+					data[0] = source.read(entry);
+				}
+				parent = new ByteArrayInputStream(data[0]);
+			}
+			return parent;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return parent().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return parent().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return parent().available();
+		}
+	}
+
+	private final SourceJar source;
+	private final EntryStore replacements;
+	private final Map<String, String> replacementHashes = new ConcurrentHashMap<>();
+	private final PackageManifestJSON manifest;
+	private final Metrics metrics;
+	private final int threads;
+	private final List<Target> targets = new ArrayList<>();
+	private Function<String, BitSet> classifier = (name) -> NO_OWNERS;
+
+	/**
+	 * @param replacements Entries to use instead of the source's, or null for none.
+	 * @param manifest The previous run's manifest, updated in place to describe this one.
+	 * @param threads The number of jars to build at the same time.
+	 */
+	public JarPackager(File file, EntryStore replacements, PackageManifestJSON manifest, Metrics metrics, int threads) throws IOException {
+		this.source = new SourceJar(file);
+		this.replacements = replacements;
+		this.manifest = manifest;
+		this.metrics = metrics;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @return The jar being packaged, which is safe to read from while packaging.
+	 */
+	public SourceJar getSource() {
+		return source;
+	}
+
+	/**
+	 * @param classifier Called once per entry; returns the indices of the targets owning it,
+	 *                   which every target's pass predicate is then given. Not modified.
+	 */
+	public void setClassifier(Function<String, BitSet> classifier) {
+		this.classifier = classifier;
+	}
+
+	public void addTarget(File outFile, Predicate<String> pass, BiFunction<String, InputStream, byte[]> patcher) {
+		addTarget(outFile, (name, owners) -> pass.test(name), patcher);
+	}
+
+	/**
+	 * @param pass Given an entry's name and owners, see {@link #setClassifier}.
+	 * @param patcher If not null, called for every entry which is not replaced; returns the
+	 *                new contents, or null to keep the original. Keep what it returns small,
+	 *                as it stays on the heap until the jar is written.
+	 */
+	public void addTarget(File outFile, BiPredicate<String, BitSet> pass, BiFunction<String, InputStream, byte[]> patcher) {
+		targets.add(new Target(outFile, pass, patcher));
+	}
+
+	/**
+	 * @param onWritten If not null, called with every jar and its fingerprint as soon as it is ready;
+	 *                  calls come from the packaging threads, but never at the same time, and
+	 *                  none are made once a jar failed to build.
+	 */
+	public void run(Set<String> filesLeft, BiConsumer<File, String> onWritten) throws IOException {
+		try (Metrics.Phase planPhase = metrics.start("package.plan")) {
+			for (SourceJar.Entry entry : source.getEntries()) {
+				if (entry.getName().equals("META-INF/MANIFEST.MF")) {
+					continue;
+				}
+
+				planPhase.addEntries(1);
+				BitSet owners = classifier.apply(entry.getName());
+				for (Target target : targets) {
+					if (target.pass.test(entry.getName(), owners)) {
+						filesLeft.remove(entry.getName());
+						target.entries.add(entry);
+					}
+				}
+			}
+		}
+
+		Map<String, PackageManifestJSON.SourceEntry> sourceEntries = new ConcurrentHashMap<>();
+		Map<String, PackageManifestJSON.Jar> jars = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, targets.size())), r -> {
+			Thread thread = new Thread(r, "Jar packager");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		boolean[] failed = new boolean[1];
+		boolean succeeded = false;
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (Target target : targets) {
+				results.add(executor.submit(() -> {
+					PackageManifestJSON.Jar jar = build(target, sourceEntries);
+					jars.put(target.file.getName(), jar);
+					if (onWritten != null) {
+						synchronized (this) {
+							// once packaging has failed, nothing more is handed out
+							if (!failed[0]) {
+								onWritten.accept(target.file, jar.fingerprint);
+							}
+						}
+					}
+					return null;
+				}));
+			}
+
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw new IOException("Could not build " + targets.get(i).file.getName(), cause);
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else {
+						throw new RuntimeException(cause);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while packaging", e);
+				}
+			}
+			succeeded = true;
+		} finally {
+			if (!succeeded) {
+				synchronized (this) {
+					failed[0] = true;
+				}
+			}
+			executor.shutdownNow();
+			// the builds still running read the entry lists, so let them stop first
+			awaitTermination(executor);
+			for (Target target : targets) {
+				target.entries.clear();
+			}
+		}
+
+		manifest.jars = new HashMap<>(jars);
+		manifest.sourceEntries = new HashMap<>(sourceEntries);
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private PackageManifestJSON.Jar build(Target target, Map<String, PackageManifestJSON.SourceEntry> sourceEntries) throws IOException {
+		try (Metrics.Phase phase = metrics.start("package/" + target.file.getName())) {
+			phase.addEntries(target.entries.size());
+			byte[] buffer = new byte[16384];
+			List<PlannedEntry> entries = new ArrayList<>(target.entries.size());
+			PackageManifestJSON.Jar jar = new PackageManifestJSON.Jar();
+			for (SourceJar.Entry entry : target.entries) {
+				if (replacements != null && replacements.containsKey(entry.getName())) {
+					System.out.println("Using modified " + entry.getName());
+					String hash = getReplacementHash(entry.getName());
+					entries.add(new PlannedEntry(entry, true, null, hash));
+					jar.entries.put(entry.getName(), hash);
+					continue;
+				}
+
+				byte[][] data = new byte[1][];
+				byte[] patch = null;
+				if (target.patcher != null) {
+					patch = target.patcher.apply(entry.getName(), new EntryInputStream(entry, data));
+				}
+
+				String hash;
+				if (patch != null) {
+					hash = JarFingerprint.hash(patch);
+				} else {
+					PackageManifestJSON.SourceEntry sourceEntry = sourceEntries.get(entry.getName());
+					if (sourceEntry == null) {
+						// two targets may race to hash a shared entry; both get the same result
+						sourceEntry = new PackageManifestJSON.SourceEntry();
+						sourceEntry.rawHash = hashRawData(entry);
+						sourceEntry.hash = hashSourceEntry(entry, sourceEntry.rawHash, data[0], buffer);
+						sourceEntries.put(entry.getName(), sourceEntry);
+					}
+					hash = sourceEntry.hash;
+				}
+				entries.add(new PlannedEntry(entry, false, patch, hash));
+				jar.entries.put(entry.getName(), hash);
+			}
+
+			PackageManifestJSON.Jar oldJar = manifest.jars.get(target.file.getName());
+			if (oldJar != null && oldJar.fingerprint != null && target.file.length() == oldJar.length
+					&& new ArrayList<>(oldJar.entries.entrySet()).equals(new ArrayList<>(jar.entries.entrySet()))) {
+				System.out.println(target.file.getName() + " is up to date");
+				jar.length = oldJar.length;
+				jar.fingerprint = oldJar.fingerprint;
+			} else {
+				try (JarWriter writer = new JarWriter(target.file)) {
+					for (PlannedEntry entry : entries) {
+						if (entry.replaced) {
+							writer.write(entry.entry.getName(), entry.entry.getDosTime(), readReplacement(entry.entry.getName()), entry.hash);
+						} else if (entry.patch != null) {
+							writer.write(entry.entry.getName(), entry.entry.getDosTime(), entry.patch, entry.hash);
+						} else {
+							writer.copy(source, entry.entry, entry.hash);
+						}
+					}
+					jar.fingerprint = writer.getFingerprint();
+				}
+				jar.length = target.file.length();
+				phase.addBytesWritten(jar.length);
+			}
+			return jar;
+		}
+	}
+
+	/**
+	 * Hashes each replacement once for all jars, without keeping its data around.
+	 */
+	private String getReplacementHash(String name) throws IOException {
+		String hash = replacementHashes.get(name);
+		if (hash == null) {
+			hash = JarFingerprint.hash(readReplacement(name));
+			replacementHashes.put(name, hash);
+		}
+		return hash;
+	}
+
+	private byte[] readReplacement(String name) throws IOException {
+		byte[] data = replacements.get(name);
+		if (data == null) {
+			throw new IOException("Replacement for " + name + " disappeared!");
+		}
+		return data;
+	}
+
+	/**
+	 * Identifies an entry's data as stored, without inflating it: the SHA-256
+	 * of its compression method and compressed bytes. Unlike the CRC, equal
+	 * values can be trusted to mean equal contents.
+	 */
+	private String hashRawData(SourceJar.Entry entry) throws IOException {
+		try (Metrics.Phase phase = metrics.start("hash.raw")) {
+			phase.addEntries(1);
+			phase.addBytesRead(entry.getCompressedSize());
+			return Hashing.sha256().newHasher()
+					.putInt(entry.getMethod())
+					.putBytes(source.getRawData(entry))
+					.hash().toString();
+		}
+	}
+
+	private String hashSourceEntry(SourceJar.Entry entry, String rawHash, byte[] data, byte[] buffer) throws IOException {
+		if (data != null) {
+			return JarFingerprint.hash(data);
+		}
+
+		PackageManifestJSON.SourceEntry old = manifest.sourceEntries.get(entry.getName());
+		if (old != null && old.hash != null && rawHash.equals(old.rawHash)) {
+			return old.hash;
+		}
+
+		try (Metrics.Phase phase = metrics.start("hash");
+			 InputStream stream = source.open(entry)) {
+			phase.addEntries(1);
+			phase.addBytesRead(entry.getSize());
+			return JarFingerprint.hash(stream, buffer);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+}
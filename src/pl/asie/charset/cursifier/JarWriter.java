@@ -0,0 +1,177 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal jar writer which, unlike {@link java.util.jar.JarOutputStream},
+ * can take an entry's compressed payload, CRC and sizes verbatim from a
+ * {@link SourceJar} instead of inflating and deflating it again.
+ */
+public class JarWriter implements Closeable {
+	private static final int FLAG_UTF8 = 0x800;
+	private static final byte[] JAR_MAGIC = { (byte) 0xFE, (byte) 0xCA, 0, 0 };
+
+	private final CountingOutputStream stream;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final byte[] buffer = new byte[8192];
+	private final List<String> entryHashes = new ArrayList<>();
+	private int count;
+
+	public JarWriter(File file) throws IOException {
+		this.stream = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		ByteArrayOutputStream manifestData = new ByteArrayOutputStream();
+		manifest.write(manifestData);
+		write("META-INF/MANIFEST.MF", toDosTime(System.currentTimeMillis()), manifestData.toByteArray());
+	}
+
+	private static int toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * Copies an entry from a source jar without recompressing it.
+	 *
+	 * @param hash The SHA-256 of the entry's uncompressed data, see {@link JarFingerprint}.
+	 */
+	public void copy(SourceJar source, SourceJar.Entry entry, String hash) throws IOException {
+		ByteBuffer data = source.getRawData(entry);
+		entryHashes.add(hash);
+		writeEntry(entry.getName(), entry.getMethod(), entry.getFlags() & 0x6, entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize(), data);
+	}
+
+	/**
+	 * Writes an entry with new contents, deflating them.
+	 */
+	public void write(String name, int dosTime, byte[] data) throws IOException {
+		write(name, dosTime, data, JarFingerprint.hash(data));
+	}
+
+	/**
+	 * @param hash The SHA-256 of data, if already known.
+	 */
+	public void write(String name, int dosTime, byte[] data, String hash) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		entryHashes.add(hash);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 16);
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			compressed.write(buffer, 0, n);
+		}
+
+		byte[] compressedData = compressed.toByteArray();
+		writeEntry(name, ZipEntry.DEFLATED, 0, dosTime, crc.getValue(), compressedData.length, data.length, ByteBuffer.wrap(compressedData));
+	}
+
+	private void writeEntry(String name, int method, int flags, int dosTime, long crc, long compressedSize, long size, ByteBuffer data) throws IOException {
+		byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+		byte[] extra = count == 0 ? JAR_MAGIC : new byte[0];
+		int version = method == ZipEntry.DEFLATED ? 20 : 10;
+		long offset = stream.getCount();
+		if (offset + 30 + nameBytes.length + extra.length + compressedSize > 0xFFFFFFFFL || count == 0xFFFF) {
+			throw new IOException("Jar too large - Zip64 is not supported!");
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x04034b50);
+		header.putShort((short) version);
+		header.putShort((short) (flags | FLAG_UTF8));
+		header.putShort((short) method);
+		header.putInt(dosTime);
+		header.putInt((int) crc);
+		header.putInt((int) compressedSize);
+		header.putInt((int) size);
+		header.putShort((short) nameBytes.length);
+		header.putShort((short) extra.length);
+		stream.write(header.array());
+		stream.write(nameBytes);
+		stream.write(extra);
+
+		if (data.hasArray()) {
+			stream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			while (data.hasRemaining()) {
+				int n = Math.min(buffer.length, data.remaining());
+				data.get(buffer, 0, n);
+				stream.write(buffer, 0, n);
+			}
+		}
+
+		ByteBuffer cen = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+		cen.putInt(0x02014b50);
+		cen.putShort((short) 20);
+		cen.putShort((short) version);
+		cen.putShort((short) (flags | FLAG_UTF8));
+		cen.putShort((short) method);
+		cen.putInt(dosTime);
+		cen.putInt((int) crc);
+		cen.putInt((int) compressedSize);
+		cen.putInt((int) size);
+		cen.putShort((short) nameBytes.length);
+		cen.putShort((short) extra.length);
+		cen.putShort((short) 0);
+		cen.putShort((short) 0);
+		cen.putShort((short) 0);
+		cen.putInt(0);
+		cen.putInt((int) offset);
+		centralDirectory.write(cen.array());
+		centralDirectory.write(nameBytes);
+		centralDirectory.write(extra);
+		count++;
+	}
+
+	/**
+	 * @return The {@link JarFingerprint} of everything written so far.
+	 */
+	public String getFingerprint() {
+		return JarFingerprint.combine(entryHashes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		long offset = stream.getCount();
+		centralDirectory.writeTo(stream);
+
+		ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(0x06054b50);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) count);
+		end.putShort((short) count);
+		end.putInt(centralDirectory.size());
+		end.putInt((int) offset);
+		end.putShort((short) 0);
+		stream.write(end.array());
+
+		stream.close();
+		deflater.end();
+	}
+}
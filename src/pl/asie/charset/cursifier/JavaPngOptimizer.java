@@ -0,0 +1,461 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * In-process PNG recompressor. Keeps only the chunks needed to render the
+ * image (the equivalent of optipng's --strip=all), de-interlaces it, then
+ * tries every scanline filter plus an adaptive one against a sweep of zlib
+ * levels and strategies, keeping the smallest result.
+ *
+ * Images it does not understand are returned unchanged.
+ */
+public class JavaPngOptimizer implements PngOptimizer {
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int FILTER_ADAPTIVE = 5;
+	private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY };
+	// Adam7: starting column, starting row, column step, row step
+	private static final int[][] PASSES = {
+			{ 0, 0, 8, 8 }, { 4, 0, 8, 8 }, { 0, 4, 4, 8 }, { 2, 0, 4, 4 }, { 0, 2, 2, 4 }, { 1, 0, 2, 2 }, { 0, 1, 1, 2 }
+	};
+
+	private static class Image {
+		private int width, height, bitDepth, colorType;
+		private boolean interlaced;
+		private byte[] palette, transparency;
+		private final ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+
+		private int getChannels() {
+			switch (colorType) {
+				case 0:
+				case 3:
+					return 1;
+				case 2:
+					return 3;
+				case 4:
+					return 2;
+				case 6:
+					return 4;
+				default:
+					return -1;
+			}
+		}
+
+		private boolean isValidBitDepth() {
+			switch (colorType) {
+				case 0:
+					return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+				case 3:
+					return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+				default:
+					return bitDepth == 8 || bitDepth == 16;
+			}
+		}
+
+		private int getBitsPerPixel() {
+			return getChannels() * bitDepth;
+		}
+
+		private long getRowLength(int w) {
+			// in long, as a huge width would overflow an int
+			return ((long) w * getBitsPerPixel() + 7) / 8;
+		}
+	}
+
+	@Override
+	public byte[] optimize(byte[] data) throws IOException {
+		try {
+			return optimizeImage(data);
+		} catch (RuntimeException e) {
+			// whatever we missed while checking the image, leave it as it was
+			return data;
+		}
+	}
+
+	private byte[] optimizeImage(byte[] data) throws IOException {
+		Image image = read(data);
+		if (image == null) {
+			return data;
+		}
+
+		byte[][] rows = decode(image);
+		if (rows == null) {
+			return data;
+		}
+
+		int bpp = Math.max(1, image.getBitsPerPixel() / 8);
+		byte[] best = null;
+		for (int filter = 0; filter <= FILTER_ADAPTIVE; filter++) {
+			byte[] filtered = filter(rows, bpp, filter);
+			for (int strategy : STRATEGIES) {
+				// the level is meaningless for Huffman-only coding
+				int minLevel = strategy == Deflater.HUFFMAN_ONLY ? 9 : 1;
+				for (int level = minLevel; level <= 9; level++) {
+					byte[] compressed = deflate(filtered, level, strategy, best != null ? best.length : Integer.MAX_VALUE);
+					if (compressed != null) {
+						best = compressed;
+					}
+				}
+			}
+		}
+
+		return best != null ? write(image, best) : data;
+	}
+
+	@Override
+	public String getSettings() {
+		return "java filters=0-4,adaptive levels=1-9 strategies=default,filtered,huffman strip=all interlace=0";
+	}
+
+	private static Image read(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		for (byte b : SIGNATURE) {
+			if (!buf.hasRemaining() || buf.get() != b) {
+				return null;
+			}
+		}
+
+		Image image = new Image();
+		boolean hasHeader = false, hasEnd = false;
+		while (!hasEnd && buf.remaining() >= 12) {
+			int length = buf.getInt();
+			byte[] typeBytes = new byte[4];
+			buf.get(typeBytes);
+			if (length < 0 || length > buf.remaining() - 4) {
+				return null;
+			}
+			byte[] chunk = new byte[length];
+			buf.get(chunk);
+			buf.getInt(); // CRC - a broken one is fixed on write, like optipng --fix
+
+			String type = new String(typeBytes, Charsets.US_ASCII);
+			switch (type) {
+				case "IHDR":
+					if (length != 13) {
+						return null;
+					}
+					ByteBuffer header = ByteBuffer.wrap(chunk);
+					image.width = header.getInt();
+					image.height = header.getInt();
+					image.bitDepth = header.get() & 0xFF;
+					image.colorType = header.get() & 0xFF;
+					if (header.get() != 0 || header.get() != 0) {
+						return null;
+					}
+					image.interlaced = header.get() != 0;
+					hasHeader = true;
+					break;
+				case "PLTE":
+					image.palette = chunk;
+					break;
+				case "tRNS":
+					image.transparency = chunk;
+					break;
+				case "IDAT":
+					image.compressedData.write(chunk, 0, chunk.length);
+					break;
+				case "IEND":
+					hasEnd = true;
+					break;
+				default:
+					if (Character.isUpperCase(type.charAt(0))) {
+						// unknown critical chunk
+						return null;
+					}
+					break;
+			}
+		}
+
+		if (!hasHeader || image.width <= 0 || image.height <= 0 || image.getChannels() < 0 || !image.isValidBitDepth()) {
+			return null;
+		}
+		if (image.colorType == 3 && image.palette == null) {
+			return null;
+		}
+		return image;
+	}
+
+	/**
+	 * @return The unfiltered, non-interlaced scanlines of the image.
+	 */
+	private static byte[][] decode(Image image) {
+		byte[] compressed = image.compressedData.toByteArray();
+		boolean interlaced = image.interlaced;
+
+		long fullRowLength = image.getRowLength(image.width);
+		if (fullRowLength > Integer.MAX_VALUE - 16) {
+			return null;
+		}
+
+		long rawLength = 0;
+		if (interlaced) {
+			for (int[] pass : PASSES) {
+				int pw = (image.width - pass[0] + pass[2] - 1) / pass[2];
+				int ph = (image.height - pass[1] + pass[3] - 1) / pass[3];
+				if (pw > 0 && ph > 0) {
+					rawLength += (long) ph * (image.getRowLength(pw) + 1);
+				}
+			}
+		} else {
+			rawLength = (long) image.height * (image.getRowLength(image.width) + 1);
+		}
+		if (rawLength > Integer.MAX_VALUE - 16) {
+			return null;
+		}
+
+		byte[] raw = new byte[(int) rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			int pos = 0;
+			while (pos < raw.length) {
+				int n = inflater.inflate(raw, pos, raw.length - pos);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					return null;
+				}
+				pos += n;
+			}
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+
+		int bpp = Math.max(1, image.getBitsPerPixel() / 8);
+		if (!interlaced) {
+			return unfilter(raw, 0, image.height, (int) fullRowLength, bpp);
+		}
+
+		byte[][] rows = new byte[image.height][(int) fullRowLength];
+		int bitsPerPixel = image.getBitsPerPixel();
+		int pos = 0;
+		for (int[] pass : PASSES) {
+			int pw = (image.width - pass[0] + pass[2] - 1) / pass[2];
+			int ph = (image.height - pass[1] + pass[3] - 1) / pass[3];
+			if (pw <= 0 || ph <= 0) {
+				continue;
+			}
+
+			int rowLength = (int) image.getRowLength(pw);
+			byte[][] passRows = unfilter(raw, pos, ph, rowLength, bpp);
+			if (passRows == null) {
+				return null;
+			}
+			pos += ph * (rowLength + 1);
+
+			for (int py = 0; py < ph; py++) {
+				byte[] dst = rows[pass[1] + py * pass[3]];
+				for (int px = 0; px < pw; px++) {
+					copyPixel(passRows[py], px, dst, pass[0] + px * pass[2], bitsPerPixel);
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static void copyPixel(byte[] src, int srcX, byte[] dst, int dstX, int bitsPerPixel) {
+		if (bitsPerPixel >= 8) {
+			int bytes = bitsPerPixel / 8;
+			System.arraycopy(src, srcX * bytes, dst, dstX * bytes, bytes);
+		} else {
+			int mask = (1 << bitsPerPixel) - 1;
+			int srcBit = srcX * bitsPerPixel, dstBit = dstX * bitsPerPixel;
+			int value = (src[srcBit >> 3] >> (8 - bitsPerPixel - (srcBit & 7))) & mask;
+			int dstShift = 8 - bitsPerPixel - (dstBit & 7);
+			dst[dstBit >> 3] = (byte) ((dst[dstBit >> 3] & ~(mask << dstShift)) | (value << dstShift));
+		}
+	}
+
+	private static byte[][] unfilter(byte[] raw, int offset, int height, int rowLength, int bpp) {
+		byte[][] rows = new byte[height][rowLength];
+		byte[] prev = new byte[rowLength];
+		for (int y = 0; y < height; y++) {
+			int filter = raw[offset++];
+			byte[] row = rows[y];
+			System.arraycopy(raw, offset, row, 0, rowLength);
+			offset += rowLength;
+
+			for (int i = 0; i < rowLength; i++) {
+				int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+				int b = prev[i] & 0xFF;
+				int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+				switch (filter) {
+					case 0:
+						break;
+					case 1:
+						row[i] += a;
+						break;
+					case 2:
+						row[i] += b;
+						break;
+					case 3:
+						row[i] += (a + b) >> 1;
+						break;
+					case 4:
+						row[i] += paeth(a, b, c);
+						break;
+					default:
+						return null;
+				}
+			}
+			prev = row;
+		}
+		return rows;
+	}
+
+	private static byte[] filter(byte[][] rows, int bpp, int filter) {
+		int rowLength = rows.length > 0 ? rows[0].length : 0;
+		byte[] out = new byte[rows.length * (rowLength + 1)];
+		byte[] candidate = new byte[rowLength];
+		byte[] prev = new byte[rowLength];
+		int pos = 0;
+
+		for (byte[] row : rows) {
+			if (filter == FILTER_ADAPTIVE) {
+				// minimum sum of absolute differences, as recommended by the PNG spec
+				int bestFilter = 0;
+				long bestSum = Long.MAX_VALUE;
+				for (int f = 0; f < FILTER_ADAPTIVE; f++) {
+					filterRow(row, prev, candidate, bpp, f);
+					long sum = 0;
+					for (byte b : candidate) {
+						sum += Math.abs((int) b);
+					}
+					if (sum < bestSum) {
+						bestSum = sum;
+						bestFilter = f;
+					}
+				}
+				filterRow(row, prev, candidate, bpp, bestFilter);
+				out[pos++] = (byte) bestFilter;
+			} else {
+				filterRow(row, prev, candidate, bpp, filter);
+				out[pos++] = (byte) filter;
+			}
+
+			System.arraycopy(candidate, 0, out, pos, rowLength);
+			pos += rowLength;
+			prev = row;
+		}
+		return out;
+	}
+
+	private static void filterRow(byte[] row, byte[] prev, byte[] out, int bpp, int filter) {
+		for (int i = 0; i < row.length; i++) {
+			int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+			int b = prev[i] & 0xFF;
+			int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+			switch (filter) {
+				case 0:
+					out[i] = row[i];
+					break;
+				case 1:
+					out[i] = (byte) (row[i] - a);
+					break;
+				case 2:
+					out[i] = (byte) (row[i] - b);
+					break;
+				case 3:
+					out[i] = (byte) (row[i] - ((a + b) >> 1));
+					break;
+				case 4:
+					out[i] = (byte) (row[i] - paeth(a, b, c));
+					break;
+			}
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		} else if (pb <= pc) {
+			return b;
+		} else {
+			return c;
+		}
+	}
+
+	/**
+	 * @return The compressed data, or null if it would not be smaller than limit.
+	 */
+	private static byte[] deflate(byte[] data, int level, int strategy, int limit) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setStrategy(strategy);
+			deflater.setInput(data);
+			deflater.finish();
+
+			byte[] out = new byte[Math.min(limit, data.length + data.length / 1000 + 64)];
+			int pos = 0;
+			while (!deflater.finished()) {
+				if (pos == out.length) {
+					if (out.length >= limit) {
+						return null;
+					}
+					byte[] grown = new byte[Math.min(limit, out.length * 2)];
+					System.arraycopy(out, 0, grown, 0, pos);
+					out = grown;
+				}
+				pos += deflater.deflate(out, pos, out.length - pos);
+			}
+
+			if (pos >= limit) {
+				return null;
+			}
+			byte[] result = new byte[pos];
+			System.arraycopy(out, 0, result, 0, pos);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] write(Image image, byte[] compressed) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length + 128);
+		out.write(SIGNATURE);
+
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(image.width);
+		header.putInt(image.height);
+		header.put((byte) image.bitDepth);
+		header.put((byte) image.colorType);
+		header.put((byte) 0);
+		header.put((byte) 0);
+		header.put((byte) 0);
+		writeChunk(out, "IHDR", header.array());
+
+		if (image.palette != null) {
+			writeChunk(out, "PLTE", image.palette);
+		}
+		if (image.transparency != null) {
+			writeChunk(out, "tRNS", image.transparency);
+		}
+		writeChunk(out, "IDAT", compressed);
+		writeChunk(out, "IEND", new byte[0]);
+		return out.toByteArray();
+	}
+
+	private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data) {
+		byte[] typeBytes = type.getBytes(Charsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		ByteBuffer buf = ByteBuffer.allocate(12 + data.length);
+		buf.putInt(data.length);
+		buf.put(typeBytes);
+		buf.put(data);
+		buf.putInt((int) crc.getValue());
+		out.write(buf.array(), 0, buf.capacity());
+	}
+}
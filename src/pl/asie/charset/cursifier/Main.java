@@ -1,18 +1,119 @@
 package pl.asie.charset.cursifier;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
 	public static final boolean SIMULATE = true;
 	public static final boolean UPLOAD_LIB = true;
 	public static final boolean UPLOAD_TABLET = false;
+	public static final int ANALYSIS_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final boolean USE_ASM_REFERENCE_SCAN = false;
+	public static final boolean USE_OPTIPNG = false;
+	public static final int PNG_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int PACKAGING_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final long PNG_CACHE_SIZE = 256L * 1024 * 1024;
+	public static final long MODIFIED_FILES_MEMORY = 64L * 1024 * 1024; // beyond this, modified files are kept on disk
+	public static final String CURSE_API_URL = "https://minecraft.curseforge.com/api/";
+	public static final int UPLOAD_THREADS = 4;
+	public static final int UPLOAD_QUEUE_SIZE = 8;
+	public static final boolean PIPELINE_UPLOADS = true;
+	public static final int UPLOAD_MAX_ATTEMPTS = 5;
+	public static final long UPLOAD_RETRY_DELAY = 2000;
+	public static final long UPLOAD_BANDWIDTH_LIMIT = 0; // bytes per second, 0 for no limit
+	public static final int STATE_JOURNAL_LIMIT = 64;
+	public static final int BATCH_THREADS = 2;
 
 	public static void main(String[] args) throws Exception {
+		File outPath = new File("/home/asie/result");
+		File defPath = new File("/home/asie/defs");
+		if (args.length > 0 && "batch".equals(args[0])) {
+			// batch <jar>... - process several jars in one go, sharing caches and connections
+			runBatch(Arrays.copyOfRange(args, 1, args.length), outPath, defPath);
+			return;
+		}
+
 		// DO NOT ADD -full TO THE FILENAME
-		ModuleUploader verifier = new ModuleUploader(new File("/home/asie/Charset-0.5.6.6.jar"), new File("/home/asie/result"), new File("/home/asie/defs"));
-		verifier.analyze();
-		verifier.packageModules();
-		System.out.println("Packaging successful - can upload!");
-		verifier.uploadModules();
+		try (SharedResources shared = new SharedResources(defPath, false);
+			 ModuleUploader verifier = new ModuleUploader(new File("/home/asie/Charset-0.5.6.6.jar"), outPath, defPath, shared)) {
+			run(verifier, args.length > 0 && "resume".equals(args[0]));
+		}
+	}
+
+	private static void run(ModuleUploader verifier, boolean resume) throws Exception {
+		try {
+			if (resume) {
+				// retry the last run's failed uploads without repackaging
+				verifier.resumeUploads();
+				return;
+			}
+			verifier.analyze();
+			if (PIPELINE_UPLOADS) {
+				verifier.packageAndUploadModules();
+			} else {
+				verifier.packageModules();
+				System.out.println("Packaging successful - can upload!");
+				verifier.uploadModules();
+			}
+		} finally {
+			verifier.writeMetrics();
+		}
+	}
+
+	/**
+	 * Runs up to BATCH_THREADS jars at a time. Each jar keeps its own packages.json,
+	 * uploads.json and metrics.json in a defs subdirectory named after it.
+	 */
+	private static void runBatch(String[] jars, File outPath, File defPath) throws Exception {
+		Set<String> names = new HashSet<>();
+		for (String jar : jars) {
+			if (!names.add(new File(jar).getName())) {
+				throw new RuntimeException("Jar " + new File(jar).getName() + " is listed twice!");
+			}
+		}
+
+		List<String> failed = new ArrayList<>();
+		try (SharedResources shared = new SharedResources(defPath, true)) {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, BATCH_THREADS));
+			try {
+				List<Future<?>> results = new ArrayList<>();
+				for (String jar : jars) {
+					File file = new File(jar);
+					File workPath = new File(defPath, file.getName().replaceFirst("\\.jar$", ""));
+					results.add(executor.submit(() -> {
+						if (!workPath.isDirectory() && !workPath.mkdirs()) {
+							throw new IOException("Could not create " + workPath);
+						}
+						System.out.println("Processing " + file.getName());
+						try (ModuleUploader verifier = new ModuleUploader(file, outPath, workPath, shared)) {
+							run(verifier, false);
+						}
+						return null;
+					}));
+				}
+
+				for (int i = 0; i < jars.length; i++) {
+					try {
+						results.get(i).get();
+					} catch (ExecutionException e) {
+						// keep going, so one broken jar does not hold up the rest
+						System.err.println("Could not process " + jars[i] + ":");
+						e.getCause().printStackTrace();
+						failed.add(jars[i]);
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		if (!failed.isEmpty()) {
+			throw new RuntimeException("Could not process " + failed);
+		}
 	}
 }
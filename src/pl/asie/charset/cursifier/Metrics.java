@@ -0,0 +1,111 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects wall time, CPU time, allocation, bytes and entries per phase of a
+ * run, and writes them out as JSON. Phases with the same name are summed up.
+ *
+ * CPU time and allocation are measured on the thread which opened the phase
+ * only, so work handed to other threads is only counted by the phases those
+ * threads open themselves (png, analyze.references, upload). Phases may be
+ * nested, in which case the outer one includes the inner ones.
+ */
+public class Metrics {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static class Record {
+		public long count;
+		public long wallMillis;
+		public long cpuMillis;
+		public long allocatedBytes;
+		public long bytesRead;
+		public long bytesWritten;
+		public long entries;
+		private transient long wallNanos, cpuNanos;
+	}
+
+	public class Phase implements AutoCloseable {
+		private final String name;
+		private final long startWall, startCpu, startAllocated;
+		private final AtomicLong bytesRead = new AtomicLong(), bytesWritten = new AtomicLong(), entries = new AtomicLong();
+
+		private Phase(String name) {
+			this.name = name;
+			this.startWall = System.nanoTime();
+			this.startCpu = getCpuTime();
+			this.startAllocated = getAllocatedBytes();
+		}
+
+		public void addBytesRead(long count) {
+			bytesRead.addAndGet(count);
+		}
+
+		public void addBytesWritten(long count) {
+			bytesWritten.addAndGet(count);
+		}
+
+		public void addEntries(long count) {
+			entries.addAndGet(count);
+		}
+
+		@Override
+		public void close() {
+			long wall = System.nanoTime() - startWall;
+			long cpu = getCpuTime() - startCpu;
+			long allocated = getAllocatedBytes() - startAllocated;
+
+			synchronized (records) {
+				Record record = records.computeIfAbsent(name, k -> new Record());
+				record.count++;
+				record.wallNanos += wall;
+				record.cpuNanos += cpu;
+				record.wallMillis = record.wallNanos / 1000000;
+				record.cpuMillis = record.cpuNanos / 1000000;
+				record.allocatedBytes += allocated;
+				record.bytesRead += bytesRead.get();
+				record.bytesWritten += bytesWritten.get();
+				record.entries += entries.get();
+			}
+		}
+	}
+
+	private final long startWall = System.nanoTime();
+	private final Map<String, Record> records = new LinkedHashMap<>();
+
+	public Phase start(String name) {
+		return new Phase(name);
+	}
+
+	private static long getCpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long getAllocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return 0;
+	}
+
+	public void write(File file) throws IOException {
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("wallMillis", (System.nanoTime() - startWall) / 1000000);
+		synchronized (records) {
+			report.put("phases", records);
+			Utils.writeAtomically(file, new GsonBuilder().setPrettyPrinting().create().toJson(report).getBytes(Charsets.UTF_8));
+		}
+	}
+}
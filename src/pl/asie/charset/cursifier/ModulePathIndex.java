@@ -0,0 +1,62 @@
+package pl.asie.charset.cursifier;
+
+import java.util.Map;
+
+/**
+ * Character trie over the module paths, resolving the module owning a class
+ * name without creating any intermediate strings. A class belongs to the
+ * module with the longest path which is either the whole (namespace-relative)
+ * name or ends right before one of its slashes.
+ */
+public class ModulePathIndex {
+	private static final String[] NAMESPACES = {
+			"pl/asie/charset/lib/", "pl/asie/charset/module/", "pl/asie/simplelogic/"
+	};
+	// lib paths keep their "lib/" prefix
+	private static final int[] NAMESPACE_OFFSETS = {
+			"pl/asie/charset/".length(), "pl/asie/charset/module/".length(), "pl/asie/simplelogic/".length()
+	};
+
+	private final CharTrieNode<ModuleDefinition> root = new CharTrieNode<>();
+
+	public ModulePathIndex(Map<String, ModuleDefinition> modulesByPath) {
+		for (Map.Entry<String, ModuleDefinition> entry : modulesByPath.entrySet()) {
+			root.getOrCreate(entry.getKey()).value = entry.getValue();
+		}
+	}
+
+	/**
+	 * @param name An internal class name or a jar entry name.
+	 * @return The owning module, or null if there is none.
+	 */
+	public ModuleDefinition get(String name) {
+		int offset = -1;
+		for (int i = 0; i < NAMESPACES.length; i++) {
+			if (name.startsWith(NAMESPACES[i])) {
+				offset = NAMESPACE_OFFSETS[i];
+				break;
+			}
+		}
+		if (offset < 0) {
+			return null;
+		}
+
+		ModuleDefinition result = null;
+		CharTrieNode<ModuleDefinition> node = root;
+		for (int i = offset; node != null; i++) {
+			if (i == name.length()) {
+				if (node.value != null) {
+					result = node.value;
+				}
+				break;
+			}
+
+			char c = name.charAt(i);
+			if (c == '/' && i > offset && node.value != null) {
+				result = node.value;
+			}
+			node = node.get(c);
+		}
+		return result;
+	}
+}
@@ -2,32 +2,21 @@ package pl.asie.charset.cursifier;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.*;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.HttpClients;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.Remapper;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.*;
-import java.util.jar.Attributes;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-public class ModuleUploader {
+public class ModuleUploader implements Closeable {
 	private static final Set<String> ALWAYS_INCLUDE = ImmutableSet.of(
 			"pack.mcmeta",
 			"licenses/LICENSE"
@@ -57,6 +46,16 @@ public class ModuleUploader {
 		}
 	}
 
+	private static class ClassReferences {
+		private final String name;
+		private final String[] refClasses;
+
+		private ClassReferences(String name, String[] refClasses) {
+			this.name = name;
+			this.refClasses = refClasses;
+		}
+	}
+
 	public class ArrayToListVisitor extends AnnotationVisitor {
 		private final List list;
 
@@ -119,21 +118,7 @@ public class ModuleUploader {
 
 		@Override
 		public void visitEnd() {
-			if (def.name != null) {
-				modules.put(def.name, def);
-				String p = path.replaceFirst("pl/asie/charset/module/", "");
-				p = p.replaceFirst("pl/asie/simplelogic/", "");
-				p = p.substring(0, p.lastIndexOf('/'));
-
-				if (!modulesCollidingPaths.contains(p)) {
-					if (modulesByPath.containsKey(p)) {
-						modulesByPath.remove(p);
-						modulesCollidingPaths.add(p);
-					} else {
-						modulesByPath.put(p, def);
-					}
-				}
-			}
+			registerModule(path, def);
 			super.visitEnd();
 		}
 	}
@@ -170,6 +155,7 @@ public class ModuleUploader {
 	public class ModuleFinder extends ClassVisitor {
 		public boolean provides = false;
 		public ModuleDefinition definition;
+		public final List<ModuleDefinition> definitions = new ArrayList<>();
 		private final String path;
 
 		public ModuleFinder(int api, String path) {
@@ -183,40 +169,82 @@ public class ModuleUploader {
 				provides = true;
 				ModuleFinderAnnotation annotation = new ModuleFinderAnnotation(api, super.visitAnnotation(desc, visible), path);
 				definition = annotation.def;
+				definitions.add(definition);
 				return annotation;
 			}
 			return super.visitAnnotation(desc, visible);
 		}
 	}
 
-	private final Map<String, byte[]> modifiedFiles;
-	private final Map<String, JsonObject> jsonFiles;
+	private final EntryStore modifiedFiles;
+	/** The FML annotation caches, which are split between the module jars. */
+	private final Set<String> jsonFiles;
 	private final BiMap<String, ModuleDefinition> moduleProviders;
 	private final Map<String, ModuleDefinition> modules;
-	private final Map<ModuleDefinition, File> moduleFiles;
+	private final BiMap<ModuleDefinition, File> moduleFiles;
+	private final Map<File, String> fingerprints;
 	private final BiMap<String, ModuleDefinition> modulesByPath;
 	private final Set<String> modulesCollidingPaths;
 	private final File file, outPath, defPath;
-	private final Multimap<String, String> errorsByModule;
+	private final ListMultimap<String, String> errorsByModule;
 	private final Gson gson;
+	private final Metrics metrics = new Metrics();
+	private final SharedResources shared;
+	private final boolean ownsShared;
+	private final ClassAnalysisCache classCache;
 	private final SettingsJSON settings;
 	private Set<String> files;
+	private ModulePathIndex modulePathIndex;
+	private DependencyGraph dependencyGraph;
 
 	public ModuleUploader(File file, File outPath, File defsPath) throws IOException {
+		this(file, outPath, defsPath, new SharedResources(defsPath, false), true);
+	}
+
+	/**
+	 * @param workPath Where to keep what only concerns this jar (packages.json, uploads.json, metrics.json).
+	 */
+	public ModuleUploader(File file, File outPath, File workPath, SharedResources shared) {
+		this(file, outPath, workPath, shared, false);
+	}
+
+	private ModuleUploader(File file, File outPath, File workPath, SharedResources shared, boolean ownsShared) {
 		this.file = file;
 		this.outPath = outPath;
-		this.defPath = defsPath;
+		this.defPath = workPath;
 		this.gson = new Gson();
-		this.settings = gson.fromJson(new InputStreamReader(new FileInputStream(new File(defsPath, "settings.json"))), SettingsJSON.class);
+		this.shared = shared;
+		this.ownsShared = ownsShared;
+		this.classCache = shared.getClassCache();
+		this.settings = shared.getSettings();
 		this.files = new HashSet<>();
-		this.jsonFiles = new HashMap<>();
-		this.errorsByModule = LinkedListMultimap.create();
+		this.jsonFiles = new HashSet<>();
+		this.errorsByModule = Multimaps.synchronizedListMultimap(LinkedListMultimap.create());
 		this.modules = new HashMap<>();
 		this.modulesCollidingPaths = new HashSet<>();
-		this.moduleFiles = new HashMap<>();
+		this.moduleFiles = HashBiMap.create();
+		this.fingerprints = new HashMap<>();
 		this.modulesByPath = HashBiMap.create();
 		this.moduleProviders = HashBiMap.create();
-		this.modifiedFiles = new HashMap<>();
+		this.modifiedFiles = new EntryStore(Main.MODIFIED_FILES_MEMORY, null);
+	}
+
+	private void registerModule(String path, ModuleDefinition def) {
+		if (def.name != null) {
+			modules.put(def.name, def);
+			String p = path.replaceFirst("pl/asie/charset/module/", "");
+			p = p.replaceFirst("pl/asie/simplelogic/", "");
+			p = p.substring(0, p.lastIndexOf('/'));
+
+			if (!modulesCollidingPaths.contains(p)) {
+				if (modulesByPath.containsKey(p)) {
+					modulesByPath.remove(p);
+					modulesCollidingPaths.add(p);
+				} else {
+					modulesByPath.put(p, def);
+				}
+			}
+		}
 	}
 
 	private static String reformatModuleName(String name) {
@@ -228,92 +256,270 @@ public class ModuleUploader {
 		return builder.toString();
 	}
 
+	private String getFingerprint(File file) throws IOException {
+		String fingerprint = fingerprints.get(file);
+		if (fingerprint == null) {
+			fingerprint = JarFingerprint.compute(file);
+			fingerprints.put(file, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	private void save(Object o, String filename) throws IOException {
+		Utils.writeAtomically(new File(defPath, filename), gson.toJson(o).getBytes(Charsets.UTF_8));
+	}
+
 	public void uploadModules() throws IOException {
-		File stateFile = new File(defPath, "state.json");
-		StateJSON state = stateFile.exists() ? gson.fromJson(new InputStreamReader(new FileInputStream(stateFile)), StateJSON.class) : new StateJSON();
-		for (Map.Entry<ModuleDefinition, File> entry : moduleFiles.entrySet()) {
-			for (String s : entry.getKey().contains) {
-				if (errorsByModule.containsKey(s)) {
-					String n = s;
-					System.err.println("Cannot upload module " + n + ":");
-					for (String ss : errorsByModule.get(n)) {
-						System.err.println(ss);
-					}
+		try (StateStore state = shared.getState()) {
+			UploadQueueJSON queue = new UploadQueueJSON();
+			for (Map.Entry<ModuleDefinition, File> entry : moduleFiles.entrySet()) {
+				UploadQueueJSON.Item item = createUploadItem(entry.getKey(), entry.getValue(), state, false);
+				if (item != null) {
+					queue.items.add(item);
 				}
 			}
 
-			if (settings.curseFriendlyModules.containsKey(entry.getKey().name)) {
-				if (entry.getKey().name.equals("tablet") && !Main.UPLOAD_TABLET) {
-					continue;
+			if (!Main.SIMULATE) {
+				save(queue, "uploads.json");
+				processUploadQueue(queue, state);
+			}
+		}
+	}
+
+	/**
+	 * Packages the modules, uploading every jar as soon as it is written
+	 * instead of waiting for all of them. Modules with errors are held back,
+	 * as is everything not yet submitted if packaging fails.
+	 */
+	public void packageAndUploadModules() throws IOException {
+		UploadQueueJSON queue = new UploadQueueJSON();
+		int uploaded;
+		try (StateStore state = shared.getState();
+			 UploadScheduler scheduler = shared.createUploadScheduler(metrics)) {
+			try {
+				packageModules((outFile) -> {
+					ModuleDefinition def = moduleFiles.inverse().get(outFile);
+					try {
+						UploadQueueJSON.Item item = createUploadItem(def, outFile, state, true);
+						if (item == null) {
+							return;
+						}
+
+						synchronized (queue) {
+							queue.items.add(item);
+							save(queue, "uploads.json");
+						}
+						submitUpload(scheduler, queue, item, state);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				// let the uploads already under way finish and record their results
+				try {
+					scheduler.finish();
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
 				}
+				throw e;
+			}
+			uploaded = scheduler.finish();
+		}
 
-				if (entry.getKey().name.equals("lib") && !Main.UPLOAD_LIB) {
-					continue;
+		if (!Main.SIMULATE) {
+			printUploadSummary(uploaded, queue.items.size());
+		}
+	}
+
+	private boolean hasErrors(ModuleDefinition def) {
+		for (String s : def.contains) {
+			if (errorsByModule.containsKey(s)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param holdBackErrors Whether to leave out the module if it has errors.
+	 * @return The upload to queue for the given module jar, or null if there
+	 * is nothing to upload (or we are only simulating).
+	 */
+	private UploadQueueJSON.Item createUploadItem(ModuleDefinition def, File file, StateStore state, boolean holdBackErrors) throws IOException {
+		for (String s : def.contains) {
+			if (errorsByModule.containsKey(s)) {
+				String n = s;
+				System.err.println("Cannot upload module " + n + ":");
+				for (String ss : errorsByModule.get(n)) {
+					System.err.println(ss);
 				}
+			}
+		}
 
-				if (state.add(entry.getValue(), true)) {
-					String version = entry.getValue().getName();
-					String[] vDashes = version.split("-");
-					version = vDashes[vDashes.length - 1].startsWith("full") ? vDashes[vDashes.length - 2] : vDashes[vDashes.length - 1];
-					version = version.replaceFirst("\\.jar", "");
+		if (settings.curseFriendlyModules.containsKey(def.name)) {
+			if (def.name.equals("tablet") && !Main.UPLOAD_TABLET) {
+				return null;
+			}
 
-					System.out.println("Uploading " + entry.getValue() + " (version " + version + ")");
+			if (def.name.equals("lib") && !Main.UPLOAD_LIB) {
+				return null;
+			}
 
-					CurseMetadataJSON metadataJSON = new CurseMetadataJSON();
-					entry.getKey().fill(metadataJSON, version);
-					metadataJSON.gameVersions = settings.curseGameVersions;
+			// before anything is reserved or reported as uploading
+			if (holdBackErrors && hasErrors(def)) {
+				System.err.println("Holding back " + file.getName() + " - module has errors!");
+				return null;
+			}
 
-					if (Main.SIMULATE) {
-						System.out.println(gson.toJson(metadataJSON));
-					} else {
-						try {
-							HttpClient client = HttpClients.createDefault();
-							HttpPost post = new HttpPost(new URI("https://minecraft.curseforge.com/api/projects/" + settings.curseFriendlyModules.get(entry.getKey().name) + "/upload-file"));
-
-							post.addHeader("X-Api-Token", settings.curseToken);
-							post.setEntity(MultipartEntityBuilder.create()
-									.addBinaryBody("file", entry.getValue())
-									.addTextBody("metadata", gson.toJson(metadataJSON))
-									.build()
-							);
-
-							HttpResponse response = client.execute(post);
-							if (response.getStatusLine().getStatusCode() == 200) {
-								state.add(entry.getValue(), false);
-								Files.write(gson.toJson(state).getBytes(Charsets.UTF_8), stateFile);
-								System.out.println("*** ADDED!");
-							}
-							System.out.println(new String(ByteStreams.toByteArray(response.getEntity().getContent()), Charsets.UTF_8));
-						} catch (URISyntaxException e) {
-							e.printStackTrace();
-						}
-					}
+			String fingerprint = getFingerprint(file);
+			// claimed right away, so a jar processed alongside this one does not upload the same contents
+			if (state.reserve(fingerprint, this)) {
+				String version = file.getName();
+				String[] vDashes = version.split("-");
+				version = vDashes[vDashes.length - 1].startsWith("full") ? vDashes[vDashes.length - 2] : vDashes[vDashes.length - 1];
+				version = version.replaceFirst("\\.jar", "");
+
+				System.out.println("Uploading " + file + " (version " + version + ")");
+
+				CurseMetadataJSON metadataJSON = new CurseMetadataJSON();
+				def.fill(metadataJSON, version);
+				metadataJSON.gameVersions = settings.curseGameVersions;
+
+				if (Main.SIMULATE) {
+					System.out.println(gson.toJson(metadataJSON));
 				} else {
-					System.out.println("Skipping " + entry.getValue() + " - no changes");
+					UploadQueueJSON.Item item = new UploadQueueJSON.Item();
+					item.file = file.getAbsolutePath();
+					item.fingerprint = fingerprint;
+					item.projectId = settings.curseFriendlyModules.get(def.name);
+					item.metadata = gson.toJson(metadataJSON);
+					return item;
 				}
+			} else {
+				System.out.println("Skipping " + file + " - no changes");
 			}
 		}
+		return null;
 	}
 
-	private boolean shouldPackage(String name, Collection<String> prefixes) {
+	/**
+	 * Retries every upload from the last run's queue which did not succeed,
+	 * without analysing or packaging anything.
+	 */
+	public void resumeUploads() throws IOException {
+		File queueFile = new File(defPath, "uploads.json");
+		if (!queueFile.exists()) {
+			System.out.println("No upload queue to resume.");
+			return;
+		}
+
+		UploadQueueJSON queue = gson.fromJson(new InputStreamReader(new FileInputStream(queueFile)), UploadQueueJSON.class);
+		try (StateStore state = shared.getState()) {
+			processUploadQueue(queue, state);
+		}
+	}
+
+	private void processUploadQueue(UploadQueueJSON queue, StateStore state) throws IOException {
+		List<UploadQueueJSON.Item> items = new ArrayList<>();
+		for (UploadQueueJSON.Item item : queue.items) {
+			if (item.status == UploadQueueJSON.Status.SUCCEEDED) {
+				continue;
+			}
+
+			File file = new File(item.file);
+			if (!state.reserve(item.fingerprint, this)) {
+				System.out.println("Skipping " + file + " - already uploaded");
+				item.status = UploadQueueJSON.Status.SUCCEEDED;
+			} else if (!file.exists()) {
+				state.release(item.fingerprint, this);
+				System.err.println("Cannot upload " + file + " - file missing!");
+				item.status = UploadQueueJSON.Status.FAILED;
+				item.error = "File missing";
+			} else {
+				item.status = UploadQueueJSON.Status.PENDING;
+				item.error = null;
+				items.add(item);
+			}
+		}
+		save(queue, "uploads.json");
+
+		int uploaded;
+		try (Metrics.Phase phase = metrics.start("upload");
+			 UploadScheduler scheduler = shared.createUploadScheduler(metrics)) {
+			phase.addEntries(items.size());
+			for (UploadQueueJSON.Item item : items) {
+				submitUpload(scheduler, queue, item, state);
+			}
+			uploaded = scheduler.finish();
+		}
+		printUploadSummary(uploaded, items.size());
+	}
+
+	private void submitUpload(UploadScheduler scheduler, UploadQueueJSON queue, UploadQueueJSON.Item item, StateStore state) throws IOException {
+		File file = new File(item.file);
+		scheduler.submit(item.projectId, file, item.metadata, (sentFingerprint) -> {
+			synchronized (queue) {
+				if (sentFingerprint != null && !sentFingerprint.equals(item.fingerprint)) {
+					// record what was really uploaded
+					System.err.println(file.getName() + " changed after it was queued!");
+					state.release(item.fingerprint, this);
+					item.fingerprint = sentFingerprint;
+				}
+				item.status = UploadQueueJSON.Status.SUCCEEDED;
+				try {
+					state.add(item.fingerprint, file.getName(), false);
+					save(queue, "uploads.json");
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}, (error) -> {
+			state.release(item.fingerprint, this);
+			synchronized (queue) {
+				item.status = UploadQueueJSON.Status.FAILED;
+				item.error = error;
+				try {
+					save(queue, "uploads.json");
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+	}
+
+	private static void printUploadSummary(int uploaded, int count) {
+		System.out.println("Uploaded " + uploaded + " of " + count + " module(s).");
+		if (uploaded < count) {
+			System.err.println("Some uploads failed - run again with \"resume\" to retry them.");
+		}
+	}
+
+	private boolean shouldPackage(String name, BitSet owners, int target) {
 		if (ALWAYS_INCLUDE.contains(name)) {
 			return true;
 		}
 
-		if (jsonFiles.containsKey(name)) {
+		if (jsonFiles.contains(name)) {
 			return true;
 		}
 
-		String siPath = Utils.stripInnerClass(name);
-		for (String fPrefix : prefixes) {
-			if (siPath.startsWith(fPrefix)) {
-				return true;
-			}
-		}
-		return false;
+		return owners.get(target);
 	}
 
 	public void packageModules() throws IOException {
+		packageModules(null);
+	}
+
+	/**
+	 * @param onBuilt If not null, called with every module jar once it is ready.
+	 */
+	private void packageModules(Consumer<File> onBuilt) throws IOException {
+		try (Metrics.Phase phase = metrics.start("package")) {
+			packageModules(onBuilt, phase);
+		}
+	}
+
+	private void packageModules(Consumer<File> onBuilt, Metrics.Phase phase) throws IOException {
 		Set<ModuleDefinition> definitions = new HashSet<>();
 		definitions.addAll(modules.values());
 
@@ -336,6 +542,13 @@ public class ModuleUploader {
 			definitions.add(def);
 		}
 
+		File manifestFile = new File(defPath, "packages.json");
+		PackageManifestJSON manifest = manifestFile.exists() ? gson.fromJson(new InputStreamReader(new FileInputStream(manifestFile)), PackageManifestJSON.class) : new PackageManifestJSON();
+		JarPackager packager = new JarPackager(file, modifiedFiles, manifest, metrics, Main.PACKAGING_THREADS);
+		phase.addBytesRead(file.length());
+
+		List<ModuleDefinition> packaged = new ArrayList<>();
+		List<List<String>> prefixesByTarget = new ArrayList<>();
 		for (ModuleDefinition def : definitions) {
 			if (def.stability >= 0 && def.stability <= 2) {
 				if (def.name.startsWith("lib")) {
@@ -343,11 +556,11 @@ public class ModuleUploader {
 					continue;
 				}
 
-				final List<String> prefixes = new ArrayList<>();
+				List<String> prefixes = new ArrayList<>();
 				for (String s : def.contains) {
-					String prefix = "pl/asie/charset/module/" + s.replaceAll("\\.", "/");
+					String prefix = "pl/asie/charset/module/" + s.replace('.', '/');
 					if (s.startsWith("simplelogic")) {
-						prefix = "pl/asie/" + s.replaceAll("\\.", "/");
+						prefix = "pl/asie/" + s.replace('.', '/');
 					}
 					if (!moduleProviders.inverse().get(modules.get(s)).startsWith(prefix)) {
 						prefix = moduleProviders.inverse().get(modules.get(s));
@@ -356,83 +569,85 @@ public class ModuleUploader {
 					prefixes.add(prefix);
 					// prefixes.add(prefix.replace("pl/asie/charset/module", "assets/charset/recipes"));
 				}
+				packaged.add(def);
+				prefixesByTarget.add(prefixes);
+			}
+		}
 
-				String fn = file.getName().replaceFirst("Charset", "Charset-" + reformatModuleName(def.name));
-				if (fn.startsWith("Charset-Simplelogic")) {
-					fn = fn.replaceFirst("Charset-Simplelogic", "SimpleLogic-");
-				}
-				File outFile = new File(outPath, fn);
-				moduleFiles.put(def, outFile);
-				System.out.println("Building " + outFile.getName());
-
-				Manifest manifest = new Manifest();
-				manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-				JarOutputStream stream = new JarOutputStream(new FileOutputStream(outFile), manifest);
-				Utils.copy(file, stream, toAdd, (entry) -> shouldPackage(entry.getName(), prefixes), (entry, inStream) -> {
-					if (modifiedFiles.containsKey(entry.getName())) {
-						System.out.println("Using modified " + entry.getName());
-						return modifiedFiles.get(entry.getName());
-					}
+		// Built once for all module jars, instead of matching every entry against every prefix list.
+		PathPrefixMatcher matcher = new PathPrefixMatcher(prefixesByTarget);
+		packager.setClassifier(matcher::getTargets);
 
-					if (jsonFiles.containsKey(entry.getName())) {
-						System.out.println("Patching " + entry.getName() + " to split annotation data...");
-						JsonObject oldObject = jsonFiles.get(entry.getName());
-						JsonObject newObject = new JsonObject();
-						for (Map.Entry<String, JsonElement> entries : oldObject.entrySet()) {
-							if (shouldPackage(entries.getKey() + ".class", prefixes)) {
-								System.out.println("- " + entries.getKey());
-								newObject.add(entries.getKey(), entries.getValue());
-							}
-						}
-						return newObject.toString().getBytes(Charsets.UTF_8);
-					}
-
-					if (moduleProviders.containsKey(entry.getName())) {
-						System.out.println("Patching " + entry.getName() + " to force module...");
-						try {
-							ClassWriter writer = new ClassWriter(Opcodes.ASM6);
-							ModuleForcer moduleForcer = new ModuleForcer(Opcodes.ASM6, writer);
-							ClassReader reader = new ClassReader(inStream);
-							reader.accept(moduleForcer, 0);
-							return writer.toByteArray();
-						} catch (IOException e) {
-							e.printStackTrace();
-							return null;
-						}
-					}
-					return null;
-				});
-				stream.close();
+		// One pass over each annotation cache for all module jars, rather than one per jar.
+		Map<String, AnnotationCacheSplitter.Slice[]> annotationSlices = new HashMap<>();
+		for (String name : jsonFiles) {
+			try (InputStream stream = packager.getSource().open(packager.getSource().getEntry(name))) {
+				annotationSlices.put(name, AnnotationCacheSplitter.split(stream, matcher, packaged.size()));
 			}
 		}
+		for (int i = 0; i < packaged.size(); i++) {
+			ModuleDefinition def = packaged.get(i);
+			final int target = i;
 
-		for (String s : files) {
-			if (!s.startsWith("pl/") && !s.startsWith("assets/")) {
-				toAdd.add(s);
+			String fn = file.getName().replaceFirst("Charset", "Charset-" + reformatModuleName(def.name));
+			if (fn.startsWith("Charset-Simplelogic")) {
+				fn = fn.replaceFirst("Charset-Simplelogic", "SimpleLogic-");
 			}
+			File outFile = new File(outPath, fn);
+			moduleFiles.put(def, outFile);
+			System.out.println("Building " + outFile.getName());
+
+			packager.addTarget(outFile, (name, owners) -> shouldPackage(name, owners, target), (name, inStream) -> {
+				if (annotationSlices.containsKey(name)) {
+					System.out.println("Patching " + name + " to split annotation data...");
+					AnnotationCacheSplitter.Slice slice = annotationSlices.get(name)[target];
+					for (String className : slice.getClasses()) {
+						System.out.println("- " + className);
+					}
+					return slice.getData();
+				}
+
+				if (moduleProviders.containsKey(name)) {
+					System.out.println("Patching " + name + " to force module...");
+					try {
+						ClassWriter writer = new ClassWriter(Opcodes.ASM6);
+						ModuleForcer moduleForcer = new ModuleForcer(Opcodes.ASM6, writer);
+						ClassReader reader = new ClassReader(inStream);
+						reader.accept(moduleForcer, 0);
+						return writer.toByteArray();
+					} catch (IOException e) {
+						e.printStackTrace();
+						return null;
+					}
+				}
+				return null;
+			});
 		}
 
 		File outFile = new File(outPath, file.getName().replaceFirst("Charset", "Charset-Lib"));
 		moduleFiles.put(modules.get("lib"), outFile);
 		System.out.println("Building " + outFile.getName());
 
-		Manifest manifest = new Manifest();
-		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-		JarOutputStream stream = new JarOutputStream(new FileOutputStream(outFile), manifest);
-		Utils.copy(file, stream, toAdd, (entry) -> {
-			return !entry.getName().startsWith("pl/asie/charset/module/")
-					&& !entry.getName().startsWith("pl/asie/simplelogic/")
-					&& !entry.getName().endsWith(".sh")
-					&& toAdd.contains(entry.getName());
-		}, (entry, inStream) -> {
-			if (modifiedFiles.containsKey(entry.getName())) {
-				System.out.println("Using modified " + entry.getName());
-				return modifiedFiles.get(entry.getName());
-			}
-
-			return null;
-		});
-		stream.close();
+		// The Lib jar sees every entry after the module jars have claimed theirs, so anything
+		// still in toAdd (plus all non-pl/, non-assets/ files) has no other home.
+		packager.addTarget(outFile, (name) -> {
+			return !name.startsWith("pl/asie/charset/module/")
+					&& !name.startsWith("pl/asie/simplelogic/")
+					&& !name.endsWith(".sh")
+					&& (toAdd.contains(name) || (!name.startsWith("pl/") && !name.startsWith("assets/")));
+		}, null);
+
+		try {
+			packager.run(toAdd, (builtFile, fingerprint) -> {
+				fingerprints.put(builtFile, fingerprint);
+				if (onBuilt != null) {
+					onBuilt.accept(builtFile);
+				}
+			});
+		} finally {
+			packager.close();
+		}
+		Utils.writeAtomically(manifestFile, gson.toJson(manifest).getBytes(Charsets.UTF_8));
 
 		for (String s : toAdd) {
 			if (!s.endsWith("/")) {
@@ -442,160 +657,212 @@ public class ModuleUploader {
 	}
 
 	private ModuleDefinition getModuleFromPath(String s, boolean accountForProviders) {
-		s = Utils.stripInnerClass(s);
-
 		if (accountForProviders) {
-			if (moduleProviders.containsKey(s)) {
-				return moduleProviders.get(s);
+			ModuleDefinition provided = moduleProviders.get(s.indexOf('$') >= 0 ? Utils.stripInnerClass(s) : s);
+			if (provided != null) {
+				return provided;
 			}
 		}
 
-		String p = null;
-		if (s.startsWith("pl/asie/charset/lib/")) {
-			p = s.substring("pl/asie/charset/".length());
-		} else if (s.startsWith("pl/asie/charset/module/")) {
-			p = s.substring("pl/asie/charset/module/".length());
-		} else if (s.startsWith("pl/asie/simplelogic/")) {
-			p = s.substring("pl/asie/simplelogic/".length());
-		}
+		return modulePathIndex.get(s);
+	}
 
-		if (p != null) {
-			while (!modulesByPath.containsKey(p) && p.lastIndexOf('/') > 0) {
-				p = p.substring(0, p.lastIndexOf('/'));
-			}
-			if (modulesByPath.containsKey(p)) {
-				return modulesByPath.get(p);
+	private static boolean isCharsetClass(String s) {
+		return s.startsWith("pl/asie/charset/lib/") || s.startsWith("pl/asie/charset/module/") || s.startsWith("pl/asie/simplelogic/");
+	}
+
+	/**
+	 * Frees the modified files, deleting any which went to disk, and drops
+	 * the claims of uploads which never happened.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			modifiedFiles.close();
+		} finally {
+			shared.getState().releaseAll(this);
+			if (ownsShared) {
+				shared.close();
 			}
 		}
+	}
 
-		return null;
+	/**
+	 * Writes the {@link Metrics} collected so far to metrics.json.
+	 */
+	public void writeMetrics() throws IOException {
+		metrics.write(new File(defPath, "metrics.json"));
 	}
 
 	public void analyze() throws IOException {
-		// Phase 1: Gather all module names
-		ZipInputStream stream = new ZipInputStream(new FileInputStream(file));
-
-		ZipEntry entry;
-		while ((entry = stream.getNextEntry()) != null) {
-			files.add(entry.getName());
-			if (entry.getName().endsWith(".class")) {
-				ClassReader reader = new ClassReader(stream);
-				ModuleFinder visitor = new ModuleFinder(Opcodes.ASM6, entry.getName());
-				reader.accept(visitor, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-				if (visitor.provides) {
-					moduleProviders.put(entry.getName(), visitor.definition);
-				}
-			}
+		try (Metrics.Phase phase = metrics.start("analyze")) {
+			analyze(phase);
 		}
+	}
 
-		files = Collections.unmodifiableSet(files);
-		stream.close();
-
-		stream = new ZipInputStream(new FileInputStream(file));
-		while ((entry = stream.getNextEntry()) != null) {
-			if (entry.getName().endsWith("png")) {
-				System.out.println("Optimizing " + entry.getName());
-
-				byte[] in = ByteStreams.toByteArray(stream);
-				File tmpIn = new File("/tmp/charset.png");
+	private void analyze(Metrics.Phase phase) throws IOException {
+		PngOptimizationPool pngPool = new PngOptimizationPool(shared.getPngCache(), Main.PNG_THREADS, metrics, modifiedFiles);
+		Interner<String> interner = Interners.newStrongInterner();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Main.ANALYSIS_THREADS), r -> {
+			Thread thread = new Thread(r, "Class analyzer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		List<Future<ClassReferences>> classReferences = new ArrayList<>();
 
-				if (tmpIn.exists()) tmpIn.delete();
+		try (ZipInputStream stream = new ZipInputStream(new FileInputStream(file))) {
+			ZipEntry entry;
+			while ((entry = stream.getNextEntry()) != null) {
+				files.add(entry.getName());
+				phase.addEntries(1);
 
-				Files.write(in, tmpIn);
-				Runtime runtime = Runtime.getRuntime();
-				Process process = runtime.exec("optipng -o7 --strip=all --fix /tmp/charset.png");
-				try {
-					process.waitFor();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				if (entry.getName().endsWith("png")) {
+					pngPool.submit(entry.getName(), ByteStreams.toByteArray(stream));
 				}
 
-				byte[] out = ByteStreams.toByteArray(new FileInputStream(tmpIn));
-				if (in.length > out.length) {
-					System.out.println(in.length + " -> " + out.length);
-					modifiedFiles.put(entry.getName(), out);
+				if (entry.getName().startsWith("META-INF/fml") && entry.getName().endsWith("json")) {
+					try {
+						// only checked here; packaging reads it again from the jar rather than keeping it around
+						AnnotationCacheSplitter.check(stream);
+						jsonFiles.add(entry.getName());
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
-			}
 
-			if (entry.getName().startsWith("META-INF/fml") && entry.getName().endsWith("json")) {
-				try {
-					JsonParser parser = new JsonParser();
-					jsonFiles.put(entry.getName(), parser.parse(new String(ByteStreams.toByteArray(stream), Charsets.UTF_8)).getAsJsonObject());
-				} catch (Exception e) {
-					e.printStackTrace();
+				if (entry.getName().endsWith(".class")) {
+					byte[] data = ByteStreams.toByteArray(stream);
+					String name = entry.getName();
+					HashCode hash = ClassAnalysisCache.hash(data);
+					ClassAnalysisCache.Entry cached = classCache.get(hash);
+					if (cached != null) {
+						List<ModuleDefinition> definitions = cached.getAnnotations();
+						for (ModuleDefinition definition : definitions) {
+							registerModule(name, definition);
+						}
+						if (!definitions.isEmpty()) {
+							moduleProviders.put(name, definitions.get(definitions.size() - 1));
+						}
+					} else {
+						ClassReader reader = new ClassReader(data);
+						ModuleFinder visitor = new ModuleFinder(Opcodes.ASM6, name);
+						reader.accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+						if (visitor.provides) {
+							moduleProviders.put(name, visitor.definition);
+						}
+						cached = classCache.put(hash, visitor.definitions);
+					}
+
+					// Module ownership is only known once every provider has been seen, so
+					// just remember what each module class references for now.
+					if (name.startsWith("pl/asie/charset/module") || name.startsWith("pl/asie/simplelogic")) {
+						ClassAnalysisCache.Entry cacheEntry = cached;
+						if (cacheEntry.getReferences() != null) {
+							classReferences.add(CompletableFuture.completedFuture(new ClassReferences(name, cacheEntry.getReferences())));
+						} else {
+							classReferences.add(executor.submit(() -> {
+								try (Metrics.Phase scanPhase = metrics.start("analyze.references")) {
+									scanPhase.addEntries(1);
+									scanPhase.addBytesRead(data.length);
+
+									Set<String> allRefClasses;
+									if (Main.USE_ASM_REFERENCE_SCAN) {
+										ListingRemapper remapper = new ListingRemapper();
+										// We need the ClassWriter as the Remapper will not create MethodRemappers unless there is
+										// /something/ in there.
+										new ClassReader(data).accept(new ClassRemapper(new ClassWriter(0), remapper), 0);
+										allRefClasses = remapper.refClasses;
+									} else {
+										allRefClasses = ClassReferenceExtractor.getReferencedClasses(data);
+									}
+
+									List<String> refClasses = new ArrayList<>();
+									for (String s : allRefClasses) {
+										if (isCharsetClass(s)) {
+											refClasses.add(interner.intern(s));
+										}
+									}
+									String[] references = refClasses.toArray(new String[0]);
+									cacheEntry.setReferences(references);
+									return new ClassReferences(name, references);
+								}
+							}));
+						}
+					}
 				}
 			}
 
-			if (entry.getName().endsWith("class")) {
-				if (!(entry.getName().startsWith("pl/asie/charset/module")) && !(entry.getName().startsWith("pl/asie/simplelogic"))) {
-					continue;
-				}
+			files = Collections.unmodifiableSet(files);
+			phase.addBytesRead(file.length());
 
-				ModuleDefinition myModule = getModuleFromPath(entry.getName(), true);
-				if (myModule == null) {
-					System.out.println(entry.getName() + " has no module?");
-					continue;
-				}
-				ModuleDefinition myModulePath = getModuleFromPath(entry.getName(), false);
-
-				Multimap<String, String> depModules = HashMultimap.create();
-				ListingRemapper remapper = new ListingRemapper();
-				ClassReader reader = new ClassReader(stream);
-				// We need the ClassWriter as the Remapper will not create MethodRemappers unless there is
-				// /something/ in there.
-				ClassVisitor visitor = new ClassRemapper(new ClassWriter(0), remapper);
-				reader.accept(visitor, 0);
-
-				for (String s : remapper.refClasses) {
-					String p = null;
-					if (s.startsWith("pl/asie/charset/lib/")) {
-						p = s.substring("pl/asie/charset/".length());
-					} else if (s.startsWith("pl/asie/charset/module/")) {
-						p = s.substring("pl/asie/charset/module/".length());
-					} else if (s.startsWith("pl/asie/simplelogic/")) {
-						p = s.substring("pl/asie/simplelogic/".length());
-					}
+			modulePathIndex = new ModulePathIndex(modulesByPath);
+			dependencyGraph = new DependencyGraph(modules);
+			dependencyGraph.print();
+			for (Map.Entry<String, List<String>> conflict : dependencyGraph.getConflicts().entrySet()) {
+				errorsByModule.put(conflict.getKey(), "Module " + conflict.getKey() + " depends on modules it conflicts with: " + conflict.getValue());
+			}
 
-					if (p != null) {
-						while (!modulesByPath.containsKey(p) && p.lastIndexOf('/') > 0) {
-							p = p.substring(0, p.lastIndexOf('/'));
-						}
-						if (modulesByPath.containsKey(p)) {
-							depModules.put(modulesByPath.get(p).name, s);
+			try {
+				List<Future<ListMultimap<String, String>>> errors = new ArrayList<>();
+				for (Future<ClassReferences> references : classReferences) {
+					errors.add(executor.submit(() -> {
+						ClassReferences refs = references.get();
+						try (Metrics.Phase checkPhase = metrics.start("analyze.dependencies")) {
+							checkPhase.addEntries(1);
+							return checkDependencies(refs);
 						}
-					}
+					}));
+				}
+				// merged in jar order, so the report does not depend on thread scheduling
+				for (Future<ListMultimap<String, String>> classErrors : errors) {
+					errorsByModule.putAll(classErrors.get());
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while analyzing classes", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Could not analyze classes", e.getCause());
+			}
 
-				for (String dep : depModules.keySet()) {
-					if (!"lib".equals(dep) && !myModule.name.equals(dep) && (myModulePath == null || !myModulePath.name.equals(dep))) {
-						// dep check
-						List<String> deps = myModule.dependencies;
-						List<String> depsChecked = Lists.newArrayList(myModule.name);
-						while (!deps.isEmpty()) {
-							if (deps.contains(dep)) {
-								break;
-							}
-							depsChecked.addAll(deps);
-							List<String> depsNew = new ArrayList<>();
-							for (String ddep : deps) {
-								ModuleDefinition md = modules.get(ddep);
-								if (md != null) {
-									depsNew.addAll(md.dependencies);
-								}
-							}
-							depsNew.removeAll(depsChecked);
-							deps = depsNew;
-						}
+			shared.saveClassCache();
+			pngPool.finish();
+		} finally {
+			executor.shutdownNow();
+			pngPool.shutdown();
+		}
 
-						if (!deps.contains(dep)) {
-							errorsByModule.put(myModulePath.name, "Cross-class dependency found: " + myModule.name + " depends on " + dep + ":\n< " + entry.getName());
-							for (String s : depModules.get(dep)) {
-								errorsByModule.put(myModulePath.name, "> " + s);
-							}
-						}
+		if (modifiedFiles.getSpilledBytes() > 0) {
+			System.out.println("Spilled " + modifiedFiles.getSpilledBytes() + " bytes of modified files to disk");
+		}
+	}
+
+	private ListMultimap<String, String> checkDependencies(ClassReferences references) {
+		ListMultimap<String, String> errors = ArrayListMultimap.create();
+		ModuleDefinition myModule = getModuleFromPath(references.name, true);
+		if (myModule == null) {
+			System.out.println(references.name + " has no module?");
+			return errors;
+		}
+		ModuleDefinition myModulePath = getModuleFromPath(references.name, false);
+
+		Multimap<String, String> depModules = HashMultimap.create();
+		for (String s : references.refClasses) {
+			ModuleDefinition owner = modulePathIndex.get(s);
+			if (owner != null) {
+				depModules.put(owner.name, s);
+			}
+		}
+
+		for (String dep : depModules.keySet()) {
+			if (!"lib".equals(dep) && !myModule.name.equals(dep) && (myModulePath == null || !myModulePath.name.equals(dep))) {
+				if (!dependencyGraph.dependsOn(myModule.name, dep)) {
+					errors.put(myModulePath.name, "Cross-class dependency found: " + myModule.name + " depends on " + dep + ":\n< " + references.name);
+					for (String s : depModules.get(dep)) {
+						errors.put(myModulePath.name, "> " + s);
 					}
 				}
 			}
 		}
+		return errors;
 	}
 }
@@ -0,0 +1,38 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+public class OptiPngOptimizer implements PngOptimizer {
+	private static final String[] ARGUMENTS = { "-quiet", "-o7", "--strip=all", "--fix" };
+
+	@Override
+	public byte[] optimize(byte[] data) throws IOException {
+		File tmpFile = File.createTempFile("charset", ".png");
+		try {
+			Files.write(data, tmpFile);
+			String[] command = new String[ARGUMENTS.length + 2];
+			command[0] = "optipng";
+			System.arraycopy(ARGUMENTS, 0, command, 1, ARGUMENTS.length);
+			command[command.length - 1] = tmpFile.getAbsolutePath();
+			Process process = Runtime.getRuntime().exec(command);
+			try {
+				process.waitFor();
+			} catch (InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while optimizing PNG", e);
+			}
+			return Files.toByteArray(tmpFile);
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	@Override
+	public String getSettings() {
+		return "optipng " + String.join(" ", ARGUMENTS);
+	}
+}
@@ -0,0 +1,26 @@
+package pl.asie.charset.cursifier;
+
+import java.util.*;
+
+/**
+ * What the last packaging run produced, used by {@link JarPackager} to skip
+ * rebuilding jars whose contents would not change.
+ */
+public class PackageManifestJSON {
+	public static class Jar {
+		public long length;
+		public String fingerprint;
+		/** Entry name to SHA-256 of its contents, in jar order (the manifest excluded). */
+		public Map<String, String> entries = new LinkedHashMap<>();
+	}
+
+	public static class SourceEntry {
+		/** SHA-256 of the compression method and the compressed data, as stored in the jar. */
+		public String rawHash;
+		public String hash;
+	}
+
+	public Map<String, Jar> jars = new HashMap<>();
+	/** SHA-256 of source jar entries, reused as long as their stored data hashes the same. */
+	public Map<String, SourceEntry> sourceEntries = new HashMap<>();
+}
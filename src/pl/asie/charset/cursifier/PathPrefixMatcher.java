@@ -0,0 +1,93 @@
+package pl.asie.charset.cursifier;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Character trie over the path prefixes of every output jar, built once, so
+ * that deciding which jars an entry belongs to takes one walk over its name,
+ * without creating any intermediate strings. Inner classes are matched by
+ * the name of their outermost class, like {@link Utils#stripInnerClass}.
+ *
+ * Every node stores the set of targets owning any prefix ending at or above
+ * it, so the deepest node reached answers the lookup.
+ */
+public class PathPrefixMatcher {
+	private static final String CLASS_EXTENSION = ".class";
+
+	private final CharTrieNode<BitSet> root = new CharTrieNode<>();
+
+	/**
+	 * @param prefixesByTarget The prefixes of each target, in target index order.
+	 */
+	public PathPrefixMatcher(List<? extends Collection<String>> prefixesByTarget) {
+		for (int target = 0; target < prefixesByTarget.size(); target++) {
+			for (String prefix : prefixesByTarget.get(target)) {
+				CharTrieNode<BitSet> node = root.getOrCreate(prefix);
+				if (node.value == null) {
+					node.value = new BitSet();
+				}
+				node.value.set(target);
+			}
+		}
+
+		propagate(root, new BitSet());
+	}
+
+	private static void propagate(CharTrieNode<BitSet> node, BitSet inherited) {
+		if (node.value == null) {
+			node.value = inherited;
+		} else if (!inherited.isEmpty()) {
+			node.value.or(inherited);
+		}
+
+		for (CharTrieNode<BitSet> child : node.getChildren()) {
+			propagate(child, node.value);
+		}
+	}
+
+	/**
+	 * @param name A jar entry name.
+	 * @return Every target one of whose prefixes the name, or the outermost class of an inner
+	 * class file, starts with. Shared - do not modify.
+	 */
+	public BitSet getTargets(String name) {
+		int innerStart = name.endsWith(CLASS_EXTENSION) ? Utils.getInnerClassStart(name, name.length() - CLASS_EXTENSION.length()) : -1;
+		return innerStart < 0 ? find(name, name.length(), false).value : find(name, innerStart, true).value;
+	}
+
+	/**
+	 * @param className An internal class name, as used by the FML annotation cache.
+	 * @return The targets of the class' file, see {@link #getTargets}. Shared - do not modify.
+	 */
+	public BitSet getClassTargets(String className) {
+		int innerStart = Utils.getInnerClassStart(className, className.length());
+		return find(className, innerStart < 0 ? className.length() : innerStart, true).value;
+	}
+
+	/**
+	 * Walks the first length characters of name, followed by ".class" if asked to.
+	 */
+	private CharTrieNode<BitSet> find(String name, int length, boolean withExtension) {
+		CharTrieNode<BitSet> node = root;
+		for (int i = 0; i < length; i++) {
+			CharTrieNode<BitSet> next = node.get(name.charAt(i));
+			if (next == null) {
+				return node;
+			}
+			node = next;
+		}
+
+		if (withExtension) {
+			for (int i = 0; i < CLASS_EXTENSION.length(); i++) {
+				CharTrieNode<BitSet> next = node.get(CLASS_EXTENSION.charAt(i));
+				if (next == null) {
+					return node;
+				}
+				node = next;
+			}
+		}
+		return node;
+	}
+}
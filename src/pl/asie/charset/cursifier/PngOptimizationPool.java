@@ -0,0 +1,117 @@
+package pl.asie.charset.cursifier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs a {@link PngOptimizer} over many images on a bounded pool of worker
+ * threads. Every image which got smaller goes straight into an
+ * {@link EntryStore} as soon as it is done, and submitting blocks while
+ * twice as many images as there are workers are waiting, so neither the
+ * inputs nor the results pile up on the heap. Only the sizes are kept for
+ * the report, which is printed in submission order.
+ */
+public class PngOptimizationPool {
+	private static class Task {
+		private final String name;
+		private final int inputSize;
+		private final Future<Integer> outputSize;
+
+		private Task(String name, int inputSize, Future<Integer> outputSize) {
+			this.name = name;
+			this.inputSize = inputSize;
+			this.outputSize = outputSize;
+		}
+	}
+
+	private final PngOptimizer optimizer;
+	private final Metrics metrics;
+	private final EntryStore modifiedFiles;
+	private final ExecutorService executor;
+	private final Semaphore outstanding;
+	private final List<Task> tasks = new ArrayList<>();
+
+	/**
+	 * @param modifiedFiles Where to store every image which got smaller.
+	 */
+	public PngOptimizationPool(PngOptimizer optimizer, int threads, Metrics metrics, EntryStore modifiedFiles) {
+		this.optimizer = optimizer;
+		this.metrics = metrics;
+		this.modifiedFiles = modifiedFiles;
+		this.outstanding = new Semaphore(2 * Math.max(1, threads));
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "PNG optimizer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void submit(String name, byte[] data) throws IOException {
+		try {
+			outstanding.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to optimize " + name, e);
+		}
+
+		tasks.add(new Task(name, data.length, executor.submit(() -> {
+			try (Metrics.Phase phase = metrics.start("png")) {
+				byte[] out = optimizer.optimize(data);
+				phase.addEntries(1);
+				phase.addBytesRead(data.length);
+				phase.addBytesWritten(out.length);
+				if (out.length < data.length) {
+					modifiedFiles.put(name, out);
+				}
+				return out.length;
+			} finally {
+				outstanding.release();
+			}
+		})));
+	}
+
+	/**
+	 * Waits for all submitted images, then reports what was saved.
+	 */
+	public void finish() throws IOException {
+		long totalIn = 0, totalOut = 0;
+		int optimized = 0;
+
+		try {
+			for (Task task : tasks) {
+				int outputSize;
+				try {
+					outputSize = task.outputSize.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Could not optimize " + task.name, e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while optimizing PNGs", e);
+				}
+
+				totalIn += task.inputSize;
+				if (task.inputSize > outputSize) {
+					System.out.println("Optimized " + task.name + ": " + task.inputSize + " -> " + outputSize);
+					totalOut += outputSize;
+					optimized++;
+				} else {
+					totalOut += task.inputSize;
+				}
+			}
+		} finally {
+			shutdown();
+		}
+
+		System.out.println("Optimized " + optimized + " of " + tasks.size() + " PNGs: " + totalIn + " -> " + totalOut + " bytes (saved " + (totalIn - totalOut) + ")");
+		tasks.clear();
+	}
+
+	/**
+	 * Stops the workers without waiting for them, e.g. when the scan failed.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
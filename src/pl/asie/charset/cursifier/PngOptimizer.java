@@ -0,0 +1,18 @@
+package pl.asie.charset.cursifier;
+
+import java.io.IOException;
+
+public interface PngOptimizer {
+	/**
+	 * Must be safe to call from multiple threads at once.
+	 *
+	 * @return The optimized image - may be larger than the input.
+	 */
+	byte[] optimize(byte[] data) throws IOException;
+
+	/**
+	 * @return A string describing everything which influences the output
+	 * other than the input image itself.
+	 */
+	String getSettings();
+}
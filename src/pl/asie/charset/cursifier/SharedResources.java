@@ -0,0 +1,99 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.*;
+
+/**
+ * Everything in the defs directory which does not belong to a single source
+ * jar: the settings, the PNG and class analysis caches and the upload state,
+ * plus - if asked to - one HTTP client and bandwidth limit for all uploads.
+ * Any number of {@link ModuleUploader}s may use the same instance at once,
+ * which lets a batch run warm the caches once instead of once per jar.
+ */
+public class SharedResources implements Closeable {
+	private final Gson gson = new Gson();
+	private final File defPath;
+	private final SettingsJSON settings;
+	private final CachingPngOptimizer pngCache;
+	private final ClassAnalysisCache classCache = new ClassAnalysisCache();
+	private final StateStore state;
+	private final boolean shareConnections;
+	private BandwidthLimiter limiter;
+	private CloseableHttpClient client;
+
+	/**
+	 * @param shareConnections Whether every upload scheduler should use the same HTTP client and bandwidth
+	 *                         limit; if not, each one gets its own, and nothing needs closing.
+	 */
+	public SharedResources(File defPath, boolean shareConnections) throws IOException {
+		this.defPath = defPath;
+		this.shareConnections = shareConnections;
+		try (Reader reader = new InputStreamReader(new FileInputStream(new File(defPath, "settings.json")), Charsets.UTF_8)) {
+			this.settings = gson.fromJson(reader, SettingsJSON.class);
+		}
+
+		PngOptimizer pngOptimizer = Main.USE_OPTIPNG ? new OptiPngOptimizer() : new JavaPngOptimizer();
+		this.pngCache = new CachingPngOptimizer(pngOptimizer, new File(defPath, "pngcache"), Main.PNG_CACHE_SIZE);
+		classCache.load(getClassCacheFile());
+		this.state = new StateStore(gson, defPath);
+	}
+
+	private File getClassCacheFile() {
+		return new File(defPath, "classcache.bin");
+	}
+
+	public SettingsJSON getSettings() {
+		return settings;
+	}
+
+	public CachingPngOptimizer getPngCache() {
+		return pngCache;
+	}
+
+	public ClassAnalysisCache getClassCache() {
+		return classCache;
+	}
+
+	public void saveClassCache() throws IOException {
+		classCache.save(getClassCacheFile());
+	}
+
+	/**
+	 * @return The upload state. Closing it only writes it out; it can still be used afterwards.
+	 */
+	public StateStore getState() {
+		return state;
+	}
+
+	public synchronized UploadScheduler createUploadScheduler(Metrics metrics) {
+		if (!shareConnections) {
+			return new UploadScheduler(Main.CURSE_API_URL, settings.curseToken, Main.UPLOAD_THREADS, Main.UPLOAD_MAX_ATTEMPTS, Main.UPLOAD_RETRY_DELAY, Main.UPLOAD_BANDWIDTH_LIMIT, metrics);
+		}
+
+		if (client == null) {
+			// the pool bounds the connections of all schedulers together
+			client = UploadScheduler.createClient(Main.UPLOAD_THREADS);
+			limiter = new BandwidthLimiter(Main.UPLOAD_BANDWIDTH_LIMIT);
+		}
+		return new UploadScheduler(client, limiter, Main.CURSE_API_URL, settings.curseToken, Main.UPLOAD_THREADS, Main.UPLOAD_MAX_ATTEMPTS, Main.UPLOAD_RETRY_DELAY, metrics);
+	}
+
+	/**
+	 * Writes out the upload state, trims the PNG cache and closes the shared HTTP client.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			state.close();
+			pngCache.close();
+		} finally {
+			if (client != null) {
+				client.close();
+				client = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-only, random-access view of a jar file, built straight from its
+ * central directory. Entries can be read either inflated or as their raw
+ * compressed payload, which lets {@link JarWriter} copy them verbatim.
+ */
+public class SourceJar implements Closeable {
+	public static class Entry {
+		private final String name;
+		private final int flags, method, dosTime;
+		private final long crc, compressedSize, size, localHeaderOffset;
+
+		private Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public int getDosTime() {
+			return dosTime;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * Reads from a buffer, optionally followed - like ZipFile does for its
+	 * inflaters - by one dummy byte, which nowrap inflaters may need to finish.
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private boolean dummyRead;
+
+		private BufferInputStream(ByteBuffer buffer, boolean padded) {
+			this.buffer = buffer;
+			this.dummyRead = !padded;
+		}
+
+		@Override
+		public int read() {
+			if (buffer.hasRemaining()) {
+				return buffer.get() & 0xFF;
+			} else if (!dummyRead) {
+				dummyRead = true;
+				return 0;
+			} else {
+				return -1;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				int c = read();
+				if (c < 0) {
+					return -1;
+				}
+				b[off] = (byte) c;
+				return 1;
+			}
+
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final List<Entry> entries;
+	private final Map<String, Entry> entriesByName;
+
+	public SourceJar(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		if (channel.size() > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException(file + " is too large!");
+		}
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+		List<Entry> entries = new ArrayList<>();
+		Map<String, Entry> entriesByName = new HashMap<>();
+		ByteBuffer buf = view();
+
+		int end = buf.limit() - 22;
+		while (end >= 0 && buf.getInt(end) != END_SIGNATURE) {
+			end--;
+		}
+		if (end < 0) {
+			channel.close();
+			throw new IOException(file + " is not a zip file!");
+		}
+
+		int count = buf.getShort(end + 10) & 0xFFFF;
+		int pos = buf.getInt(end + 16);
+		for (int i = 0; i < count; i++) {
+			if (buf.getInt(pos) != CEN_SIGNATURE) {
+				channel.close();
+				throw new IOException(file + " has a corrupt central directory!");
+			}
+
+			int nameLength = buf.getShort(pos + 28) & 0xFFFF;
+			byte[] nameBytes = new byte[nameLength];
+			buf.position(pos + 46);
+			buf.get(nameBytes);
+
+			Entry entry = new Entry(
+					new String(nameBytes, Charsets.UTF_8),
+					buf.getShort(pos + 8) & 0xFFFF,
+					buf.getShort(pos + 10) & 0xFFFF,
+					buf.getInt(pos + 12),
+					buf.getInt(pos + 16) & 0xFFFFFFFFL,
+					buf.getInt(pos + 20) & 0xFFFFFFFFL,
+					buf.getInt(pos + 24) & 0xFFFFFFFFL,
+					buf.getInt(pos + 42) & 0xFFFFFFFFL
+			);
+			if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.localHeaderOffset == 0xFFFFFFFFL) {
+				channel.close();
+				throw new IOException(file + " is a Zip64 file, which is not supported!");
+			}
+			entries.add(entry);
+			entriesByName.put(entry.name, entry);
+			pos += 46 + nameLength + (buf.getShort(pos + 30) & 0xFFFF) + (buf.getShort(pos + 32) & 0xFFFF);
+		}
+
+		this.entries = Collections.unmodifiableList(entries);
+		this.entriesByName = entriesByName;
+	}
+
+	private ByteBuffer view() {
+		return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public Entry getEntry(String name) {
+		return entriesByName.get(name);
+	}
+
+	/**
+	 * @return The compressed payload of the entry, exactly as stored in the jar.
+	 */
+	public ByteBuffer getRawData(Entry entry) throws IOException {
+		ByteBuffer buf = view();
+		int pos = (int) entry.localHeaderOffset;
+		if (buf.getInt(pos) != LOC_SIGNATURE) {
+			throw new IOException("Invalid local header for " + entry.name + "!");
+		}
+
+		pos += 30 + (buf.getShort(pos + 26) & 0xFFFF) + (buf.getShort(pos + 28) & 0xFFFF);
+		buf.position(pos);
+		buf.limit(pos + (int) entry.compressedSize);
+		return buf.slice();
+	}
+
+	/**
+	 * Opens a stream inflating the entry as it is read, for when holding the
+	 * whole entry in memory is not necessary.
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		if (entry.method == ZipEntry.STORED) {
+			return new BufferInputStream(getRawData(entry), false);
+		} else if (entry.method != ZipEntry.DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name + "!");
+		}
+
+		Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(new BufferInputStream(getRawData(entry), true), inflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	public byte[] read(Entry entry) throws IOException {
+		ByteBuffer raw = getRawData(entry);
+		if (entry.method == ZipEntry.STORED) {
+			byte[] data = new byte[raw.remaining()];
+			raw.get(data);
+			return data;
+		} else if (entry.method != ZipEntry.DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name + "!");
+		}
+
+		// nowrap inflaters want one extra dummy byte of input
+		byte[] in = new byte[raw.remaining() + 1];
+		raw.get(in, 0, in.length - 1);
+		byte[] data = new byte[(int) entry.size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(in);
+			int pos = 0;
+			while (pos < data.length && !inflater.finished()) {
+				int n = inflater.inflate(data, pos, data.length - pos);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				pos += n;
+			}
+			if (pos != data.length) {
+				throw new IOException("Truncated data for " + entry.name + "!");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt data for " + entry.name + "!", e);
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
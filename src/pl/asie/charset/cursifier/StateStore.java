@@ -0,0 +1,152 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps state.json up to date without rewriting all of it on every upload.
+ * New uploads are appended, one line each, to state.journal; the journal is
+ * folded back into state.json once it grows past Main.STATE_JOURNAL_LIMIT
+ * entries and when the store is closed. Loading replays the journal on top
+ * of state.json, ignoring a last line cut short by a crash.
+ *
+ * Uploads under way are reserved in memory, so that when several jars are
+ * processed at once, only one of them uploads any given contents.
+ */
+public class StateStore implements Closeable {
+	private final Gson gson;
+	private final File stateFile, journalFile;
+	private final StateJSON state;
+	private final Map<String, Object> reservations = new HashMap<>();
+	private FileChannel journal;
+	private int journalEntries;
+
+	public StateStore(Gson gson, File defPath) throws IOException {
+		this.gson = gson;
+		this.stateFile = new File(defPath, "state.json");
+		this.journalFile = new File(defPath, "state.journal");
+
+		StateJSON state = null;
+		if (stateFile.exists()) {
+			try (Reader reader = new InputStreamReader(new FileInputStream(stateFile), Charsets.UTF_8)) {
+				state = gson.fromJson(reader, StateJSON.class);
+			}
+		}
+		this.state = state != null ? state : new StateJSON();
+
+		if (journalFile.exists()) {
+			byte[] bytes = java.nio.file.Files.readAllBytes(journalFile.toPath());
+			String data = new String(bytes, Charsets.UTF_8);
+			int start = 0, end;
+			while ((end = data.indexOf('\n', start)) >= 0) {
+				int split = data.indexOf(' ', start);
+				if (split > start && split < end) {
+					this.state.uploadedHashes.put(data.substring(start, split), data.substring(split + 1, end));
+					journalEntries++;
+				}
+				start = end + 1;
+			}
+
+			if (start < data.length()) {
+				// drop the torn last line, or the next append would be glued onto it
+				int length = 0;
+				for (int i = bytes.length - 1; i >= 0; i--) {
+					if (bytes[i] == '\n') {
+						length = i + 1;
+						break;
+					}
+				}
+				try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(length);
+					channel.force(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims a fingerprint for an upload about to happen. Claiming it again
+	 * with the same owner succeeds; recording the upload ends the claim.
+	 *
+	 * @return Whether the contents are neither uploaded nor claimed by another owner.
+	 */
+	public synchronized boolean reserve(String fingerprint, Object owner) {
+		if (!state.add(fingerprint, null, true)) {
+			return false;
+		}
+		Object current = reservations.putIfAbsent(fingerprint, owner);
+		return current == null || current == owner;
+	}
+
+	/**
+	 * Gives up a claim, e.g. because the upload failed.
+	 */
+	public synchronized void release(String fingerprint, Object owner) {
+		reservations.remove(fingerprint, owner);
+	}
+
+	public synchronized void releaseAll(Object owner) {
+		reservations.values().removeIf((o) -> o == owner);
+	}
+
+	/**
+	 * @see StateJSON#add(String, String, boolean)
+	 */
+	public synchronized boolean add(String fingerprint, String name, boolean simulate) throws IOException {
+		if (!state.add(fingerprint, name, simulate)) {
+			return false;
+		}
+
+		if (!simulate) {
+			reservations.remove(fingerprint);
+
+			if (journalEntries >= Main.STATE_JOURNAL_LIMIT) {
+				compact();
+			}
+
+			if (journal == null) {
+				journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			ByteBuffer line = ByteBuffer.wrap((fingerprint + " " + name.replace('\n', ' ') + "\n").getBytes(Charsets.UTF_8));
+			while (line.hasRemaining()) {
+				journal.write(line);
+			}
+			journal.force(false);
+			journalEntries++;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the full state to state.json and empties the journal. If this is
+	 * interrupted, the journal is simply replayed again on the next load.
+	 */
+	public synchronized void compact() throws IOException {
+		Utils.writeAtomically(stateFile, gson.toJson(state).getBytes(Charsets.UTF_8));
+		if (journal != null) {
+			journal.truncate(0);
+			journal.force(true);
+		} else if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("Could not delete " + journalFile);
+		}
+		journalEntries = 0;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (journalEntries > 0) {
+			compact();
+		}
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+}
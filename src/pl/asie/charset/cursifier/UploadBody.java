@@ -0,0 +1,120 @@
+package pl.asie.charset.cursifier;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.*;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Multipart file body for a module jar which streams the file once, and on
+ * that one read also reports progress, keeps to a {@link BandwidthLimiter} and
+ * computes the jar's {@link JarFingerprint}.
+ */
+public class UploadBody extends AbstractContentBody {
+	private static final long PROGRESS_INTERVAL = 2000000000L;
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Passes everything read on to the request body, throttled and counted.
+	 */
+	private class TeeInputStream extends FilterInputStream {
+		private final OutputStream out;
+		private final long start = System.nanoTime();
+		private long sent, lastReport = start;
+
+		private TeeInputStream(InputStream in, OutputStream out) {
+			super(in);
+			this.out = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, Math.min(len, CHUNK_SIZE));
+			if (n > 0) {
+				limiter.acquire(n);
+				out.write(b, off, n);
+				sent += n;
+
+				long now = System.nanoTime();
+				if (now - lastReport >= PROGRESS_INTERVAL) {
+					lastReport = now;
+					System.out.println(file.getName() + ": " + (sent * 100 / Math.max(1, file.length())) + "% (" + getThroughput(now) + ")");
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// everything has to go through read() to be sent
+			return Math.max(0, read(new byte[(int) Math.min(n, CHUNK_SIZE)]));
+		}
+
+		private String getThroughput(long now) {
+			return (sent * 1000000000L / Math.max(1, now - start) / 1024) + " KiB/s";
+		}
+	}
+
+	private final File file;
+	private final BandwidthLimiter limiter;
+	private volatile String fingerprint;
+
+	public UploadBody(File file, BandwidthLimiter limiter) {
+		super(ContentType.DEFAULT_BINARY);
+		this.file = file;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * @return The fingerprint of what was sent by the last {@link #writeTo}, or
+	 * null if the file could not be read as a jar.
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	@Override
+	public String getFilename() {
+		return file.getName();
+	}
+
+	@Override
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+
+	@Override
+	public long getContentLength() {
+		return file.length();
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		fingerprint = null;
+		try (TeeInputStream stream = new TeeInputStream(new FileInputStream(file), out)) {
+			try {
+				// ZipInputStream stops at the central directory, so send the rest afterwards
+				fingerprint = JarFingerprint.compute(new ZipInputStream(stream));
+			} catch (ZipException e) {
+				System.err.println(file.getName() + " is not a valid jar: " + e.getMessage());
+			}
+
+			byte[] buffer = new byte[CHUNK_SIZE];
+			while (stream.read(buffer, 0, buffer.length) >= 0) {
+				// just sending
+			}
+
+			long now = System.nanoTime();
+			System.out.println(file.getName() + ": sent " + stream.sent + " bytes (" + stream.getThroughput(now) + ")");
+		}
+	}
+}
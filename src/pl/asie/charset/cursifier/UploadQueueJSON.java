@@ -0,0 +1,26 @@
+package pl.asie.charset.cursifier;
+
+import java.util.*;
+
+/**
+ * The jars the last upload run set out to upload and how far it got, so
+ * that failed uploads can be retried without analysing or packaging again.
+ */
+public class UploadQueueJSON {
+	public enum Status {
+		PENDING,
+		SUCCEEDED,
+		FAILED
+	}
+
+	public static class Item {
+		public String file;
+		public String fingerprint;
+		public int projectId;
+		public String metadata;
+		public Status status = Status.PENDING;
+		public String error;
+	}
+
+	public List<Item> items = new ArrayList<>();
+}
@@ -0,0 +1,226 @@
+package pl.asie.charset.cursifier;
+
+import com.google.common.base.Charsets;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Uploads module jars to CurseForge, a bounded number at a time, over one
+ * pooled keep-alive HTTP client. Results are reported in submission order.
+ *
+ * Connection errors, 429s and 5xx responses are retried with exponential
+ * backoff, waiting at least as long as any Retry-After header asks for.
+ * Submitting blocks while Main.UPLOAD_QUEUE_SIZE uploads are outstanding,
+ * so a fast producer cannot run arbitrarily far ahead of the network. All
+ * uploads together are kept under the bandwidth limit, if there is one.
+ */
+public class UploadScheduler implements Closeable {
+	private static class Task {
+		private final File file;
+		private final Future<Boolean> result;
+
+		private Task(File file, Future<Boolean> result) {
+			this.file = file;
+			this.result = result;
+		}
+	}
+
+	private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+	private final String apiUrl, token;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final Metrics metrics;
+	private final BandwidthLimiter limiter;
+	private final CloseableHttpClient client;
+	private final boolean ownsClient;
+	private final ExecutorService executor;
+	private final Semaphore outstanding = new Semaphore(Main.UPLOAD_QUEUE_SIZE);
+	private final List<Task> tasks = new ArrayList<>();
+
+	/**
+	 * @param apiUrl The API root, ending with a slash.
+	 * @param retryDelay The delay before the first retry, in milliseconds; doubled for every further one.
+	 * @param bandwidthLimit The maximum combined upload rate in bytes per second, or 0 for none.
+	 */
+	public UploadScheduler(String apiUrl, String token, int parallelism, int maxAttempts, long retryDelay, long bandwidthLimit, Metrics metrics) {
+		this(createClient(parallelism), true, new BandwidthLimiter(bandwidthLimit), apiUrl, token, parallelism, maxAttempts, retryDelay, metrics);
+	}
+
+	/**
+	 * Uploads through a client and bandwidth limit shared with other schedulers; the client is not closed.
+	 */
+	public UploadScheduler(CloseableHttpClient client, BandwidthLimiter limiter, String apiUrl, String token, int parallelism, int maxAttempts, long retryDelay, Metrics metrics) {
+		this(client, false, limiter, apiUrl, token, parallelism, maxAttempts, retryDelay, metrics);
+	}
+
+	private UploadScheduler(CloseableHttpClient client, boolean ownsClient, BandwidthLimiter limiter, String apiUrl, String token, int parallelism, int maxAttempts, long retryDelay, Metrics metrics) {
+		this.client = client;
+		this.ownsClient = ownsClient;
+		this.limiter = limiter;
+		this.apiUrl = apiUrl;
+		this.token = token;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryDelay = retryDelay;
+		this.metrics = metrics;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+			Thread thread = new Thread(r, "Uploader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return A keep-alive client with up to the given number of connections.
+	 */
+	public static CloseableHttpClient createClient(int connections) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(Math.max(1, connections));
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, connections));
+		return HttpClients.custom().setConnectionManager(connectionManager).build();
+	}
+
+	/**
+	 * @param onSuccess Called from an upload thread once the file is accepted, with the
+	 *                  fingerprint of what was actually sent (null if it was not a valid jar).
+	 * @param onFailure Called from an upload thread with the reason once the upload is given up on.
+	 */
+	public void submit(int projectId, File file, String metadata, Consumer<String> onSuccess, Consumer<String> onFailure) throws IOException {
+		try {
+			outstanding.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to upload " + file.getName(), e);
+		}
+
+		tasks.add(new Task(file, executor.submit(() -> {
+			try (Metrics.Phase phase = metrics.start("upload/" + file.getName())) {
+				return upload(projectId, file, metadata, onSuccess, onFailure, phase);
+			} finally {
+				outstanding.release();
+			}
+		})));
+	}
+
+	private boolean upload(int projectId, File file, String metadata, Consumer<String> onSuccess, Consumer<String> onFailure, Metrics.Phase phase) throws InterruptedException {
+		for (int attempt = 1; ; attempt++) {
+			phase.addEntries(1);
+			phase.addBytesWritten(file.length());
+			HttpPost post = new HttpPost(apiUrl + "projects/" + projectId + "/upload-file");
+			post.addHeader("X-Api-Token", token);
+			UploadBody fileBody = new UploadBody(file, limiter);
+			post.setEntity(MultipartEntityBuilder.create()
+					.addPart("file", fileBody)
+					.addTextBody("metadata", metadata)
+					.build()
+			);
+
+			String error;
+			long delay = getBackoff(attempt);
+			boolean retry;
+			try (CloseableHttpResponse response = client.execute(post)) {
+				int code = response.getStatusLine().getStatusCode();
+				String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), Charsets.UTF_8) : "";
+				if (code == 200) {
+					onSuccess.accept(fileBody.getFingerprint());
+					System.out.println(file.getName() + ": " + response.getStatusLine() + " *** ADDED!\n" + body);
+					return true;
+				}
+
+				error = response.getStatusLine() + "\n" + body;
+				retry = code == 429 || code >= 500;
+				delay = Math.max(delay, getRetryAfter(response));
+			} catch (IOException e) {
+				error = e.toString();
+				retry = true;
+			}
+
+			if (!retry || attempt >= maxAttempts) {
+				System.err.println(file.getName() + ": giving up after " + attempt + " attempt(s): " + error);
+				onFailure.accept(error);
+				return false;
+			}
+
+			System.err.println(file.getName() + ": attempt " + attempt + " failed, retrying in " + delay + "ms: " + error);
+			Thread.sleep(delay);
+		}
+	}
+
+	private long getBackoff(int attempt) {
+		long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(attempt - 1, 20));
+		// spread out uploads which failed together
+		return delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+	}
+
+	/**
+	 * @return The delay asked for by the response's Retry-After header, in milliseconds, or 0.
+	 */
+	private static long getRetryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return 0;
+		}
+
+		String value = header.getValue().trim();
+		long delay;
+		try {
+			delay = Long.parseLong(value) * 1000;
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			delay = date != null ? date.getTime() - System.currentTimeMillis() : 0;
+		}
+		return Math.max(0, Math.min(MAX_RETRY_DELAY, delay));
+	}
+
+	/**
+	 * Waits for every submitted upload.
+	 *
+	 * @return The number of files which were accepted.
+	 */
+	public int finish() throws IOException {
+		int uploaded = 0;
+		try {
+			for (Task task : tasks) {
+				try {
+					if (task.result.get()) {
+						uploaded++;
+					}
+				} catch (ExecutionException e) {
+					throw new IOException("Could not upload " + task.file.getName(), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while uploading", e);
+				}
+			}
+		} finally {
+			tasks.clear();
+		}
+		return uploaded;
+	}
+
+	@Override
+	public void close() throws IOException {
+		executor.shutdownNow();
+		if (ownsClient) {
+			// also closes its connection manager
+			client.close();
+		}
+	}
+}
@@ -1,51 +1,63 @@
 package pl.asie.charset.cursifier;
 
-import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
-
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.Set;
-import java.util.function.BiFunction;
-import java.util.function.Predicate;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.nio.file.StandardCopyOption;
 
 public final class Utils {
 	private Utils() {
 	}
 
+	/**
+	 * Maps an inner class file name to its outermost class' file name
+	 * ("a/B$C$1.class" to "a/B.class"); any other name is returned as is.
+	 */
 	static String stripInnerClass(String s) {
-		return s.replaceFirst("\\$[a-zA-Z0-9\\$]+\\.class$", "\\.class");
+		if (!s.endsWith(".class")) {
+			return s;
+		}
+		int i = getInnerClassStart(s, s.length() - 6);
+		return i < 0 ? s : new StringBuilder(i + 6).append(s, 0, i).append(".class").toString();
 	}
 
-	public static void copy(File zipFile, JarOutputStream stream, Set<String> filesLeft, Predicate<ZipEntry> pass, BiFunction<ZipEntry, ZipInputStream, byte[]> patcher) throws IOException {
-		ZipInputStream inStream = new ZipInputStream(new FileInputStream(zipFile));
-		ZipEntry entry;
-
-		while ((entry = inStream.getNextEntry()) != null) {
-			if (!entry.getName().equals("META-INF/MANIFEST.MF") && pass.test(entry)) {
-				filesLeft.remove(entry.getName());
-				JarEntry entryNew = new JarEntry(entry.getName());
-				entryNew.setTime(entry.getTime());
-				stream.putNextEntry(entryNew);
-				if (patcher != null) {
-					byte[] patch = patcher.apply(entry, inStream);
-					if (patch != null) {
-						stream.write(patch);
-						stream.closeEntry();
-						continue;
-					}
-				}
-				ByteStreams.copy(inStream, stream);
-				stream.closeEntry();
+	/**
+	 * @param end The length of the class name, not counting any ".class" extension.
+	 * @return The index of the '$' the inner class part of the name starts at, or -1.
+	 */
+	static int getInnerClassStart(CharSequence s, int end) {
+		int start = end;
+		while (start > 0 && isInnerClassChar(s.charAt(start - 1))) {
+			start--;
+		}
+		// the '$' has to be followed by at least one character
+		for (int i = start; i < end - 1; i++) {
+			if (s.charAt(i) == '$') {
+				return i;
 			}
 		}
+		return -1;
+	}
 
-		inStream.close();
+	private static boolean isInnerClassChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '$';
+	}
+
+	/**
+	 * Replaces a file's contents such that, even if the process dies midway,
+	 * it holds either the old or the new data in full.
+	 */
+	static void writeAtomically(File file, byte[] data) throws IOException {
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (FileOutputStream stream = new FileOutputStream(tmpFile)) {
+				stream.write(data);
+				stream.getFD().sync();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
+		}
 	}
 }